@@ -0,0 +1,176 @@
+/*
+ *  AnalysisResultCache.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.util.GateRuntimeException;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * A cache for the annotations created by the language analyser of
+ * {@link IndirectLanguageAnalyserPR}, keyed by a hash of the text of the
+ * virtual document and of the configuration of the analyser.
+ * <p>
+ * The serialized annotations of the most recently used keys are kept in
+ * memory. If a directory is given, each entry is also written to a file
+ * in that directory named after the key and entries not found in memory
+ * are looked up there, so the directory can be shared by later runs.
+ * The methods can be used from several threads.
+ *
+ * @author Johann Petrak
+ */
+class AnalysisResultCache {
+
+  private static final String FILE_EXTENSION = ".vdcache";
+
+  private final Map<String,byte[]> entries;
+  private final File directory;
+  private final Logger logger = Logger.getLogger(AnalysisResultCache.class);
+
+  /**
+   * Create a cache that keeps up to maxEntries entries in memory and
+   * stores all entries in directory if that is not null.
+   */
+  AnalysisResultCache(final int maxEntries, File directory) {
+    entries = new LinkedHashMap<String,byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    if(directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new GateRuntimeException(
+        "Cannot create the cache directory " + directory);
+    }
+    this.directory = directory;
+  }
+
+  /**
+   * The key for a virtual document text processed by an analyser with the
+   * given configuration.
+   */
+  static String createKey(String configuration, String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(configuration.getBytes("UTF-8"));
+      digest.update((byte)0);
+      digest.update(text.getBytes("UTF-8"));
+      StringBuilder key = new StringBuilder();
+      for(byte b : digest.digest()) {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16));
+        key.append(Character.forDigit(b & 0xf, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new GateRuntimeException(ex);
+    } catch (UnsupportedEncodingException ex) {
+      throw new GateRuntimeException(ex);
+    }
+  }
+
+  /**
+   * The annotations stored for the key or null if there are none.
+   */
+  CachedAnnotations get(String key) {
+    byte[] data;
+    synchronized(this) {
+      data = entries.get(key);
+    }
+    if(data == null && directory != null) {
+      data = readFile(new File(directory, key + FILE_EXTENSION));
+      if(data != null) {
+        synchronized(this) {
+          entries.put(key, data);
+        }
+      }
+    }
+    if(data == null) {
+      return null;
+    }
+    try {
+      return CachedAnnotations.fromBytes(data);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Cannot restore cached annotations", ex);
+    }
+  }
+
+  /**
+   * Store the annotations for the key. If some feature value cannot be
+   * serialized, nothing is stored.
+   */
+  void put(String key, CachedAnnotations annotations) {
+    byte[] data;
+    try {
+      data = annotations.toBytes();
+    } catch (IOException ex) {
+      logger.debug("Not caching annotations: " + ex);
+      return;
+    }
+    synchronized(this) {
+      entries.put(key, data);
+    }
+    if(directory != null) {
+      writeFile(new File(directory, key + FILE_EXTENSION), data);
+    }
+  }
+
+  private byte[] readFile(File file) {
+    if(!file.isFile()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        byte[] data = new byte[(int)file.length()];
+        in.readFully(data);
+        return data;
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      logger.warn("Cannot read cache file " + file + ": " + ex);
+      return null;
+    }
+  }
+
+  private void writeFile(File file, byte[] data) {
+    if(file.exists()) {
+      return;
+    }
+    // write to a temporary file first, so a concurrent reader never sees
+    // an incomplete file
+    try {
+      File tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+      OutputStream out = new FileOutputStream(tmpFile);
+      try {
+        out.write(data);
+      } finally {
+        out.close();
+      }
+      if(!tmpFile.renameTo(file)) {
+        tmpFile.delete();
+      }
+    } catch (IOException ex) {
+      logger.warn("Cannot write cache file " + file + ": " + ex);
+    }
+  }
+}
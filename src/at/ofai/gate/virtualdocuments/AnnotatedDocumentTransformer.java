@@ -15,9 +15,15 @@ import gate.Document;
 import gate.Factory;
 import gate.Annotation;
 import gate.FeatureMap;
+import gate.corpora.DocumentImpl;
 import gate.util.GateRuntimeException;
 import gate.util.InvalidOffsetException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -76,6 +82,11 @@ import org.apache.log4j.Logger;
  * <li>separator=somestring how to separate the output from different offsets
  * <li>separatorSame=someString how to seperate the output that comes from
  * identical offsets. If not set, use the same string as for <code>separator</code>.
+ * <li>stringChunks=true|false if true, @STRING takes all the text up to the
+ * next offset where some other specification matches as one chunk, so
+ * separators are only inserted between chunks and not between the individual
+ * characters. If no separators are used, chunks are always taken since the
+ * result is the same.
  * <li>terminator=string how to terminate the output string.
  * <li>separatorKeyValue=someString if this is specified and not empty, the
  * output will have the format "key<someString>value" where key is the
@@ -94,6 +105,9 @@ import org.apache.log4j.Logger;
  * This is implemented as a setter method and not as a processing parameter
  * since it is something that the end user in general should not be able to
  * influence.
+ * Calling {@link #setCompressOffsetMaps} with parameter true makes the maps
+ * only store the ranges that were mapped instead of one entry per offset,
+ * which needs much less memory for large documents.
  * <p>
  * When those maps have been generated, the methods 
  * {@link #addBackMappedAnnotations} and
@@ -101,6 +115,13 @@ import org.apache.log4j.Logger;
  * to transfer annotations from the virtual document to the original document
  * or from the original document to the virtual document.
  * <p>
+ * {@link #transform(Document, String)} returns the text together with the
+ * maps for the document in a {@link TransformResult} instead of keeping the
+ * maps in the transformer. Since the transformer is not changed by this,
+ * a single transformer can be shared by several threads that each process
+ * their own documents, as long as {@link #setCompressOffsetMaps} is
+ * not called while it is in use.
+ * <p>
  * TODOS:
  * <ul>
  * <li>IMPORTANT: transfer the code to actually create a virtual document
@@ -116,6 +137,9 @@ public class AnnotatedDocumentTransformer {
   private List<String> originalAnnotationParms;
 
   public Set<String> annotationTypes = new HashSet<String>();
+
+  // the annotation specifications compiled into a dispatch table by type
+  private CompiledSpecifications compiledSpecifications;
   
   // processing parms
 
@@ -136,9 +160,13 @@ public class AnnotatedDocumentTransformer {
   // this will generate as the keyword the original annotation specification
   // and as the value the value returned for that specification
   private String separatorKeyValue = null;
+  // If true, @STRING takes the text up to the next matching annotation
+  // as one chunk instead of character by character
+  private Boolean stringChunks = false;
 
   private Boolean generateForwardOffsetMap = false;
   private Boolean generateBackwardOffsetMap = false;
+  private Boolean compressOffsetMaps = false;
 
   public Boolean getGenerateForwardOffsetMap() {
     return generateForwardOffsetMap;
@@ -148,6 +176,18 @@ public class AnnotatedDocumentTransformer {
     return generateBackwardOffsetMap;
   }
 
+  /**
+   * If set to true, the offset maps created from now on only store the
+   * mapped ranges and use a binary search for each lookup.
+   */
+  public void setCompressOffsetMaps(Boolean compressOffsetMaps) {
+    this.compressOffsetMaps = compressOffsetMaps;
+  }
+
+  public Boolean getCompressOffsetMaps() {
+    return compressOffsetMaps;
+  }
+
   
   private OffsetMapping theForwardOffsetMapping = null;
   public OffsetMapping getForwardOffsetMap() {
@@ -159,10 +199,10 @@ public class AnnotatedDocumentTransformer {
     return theBackwardOffsetMapping;
   }
 
-  // if we do both forward and backward mapping, a set to remember which
-  // annotations have been forward mapped, so we can avoid to needlessly
-  // mapping them back
-  private HashSet<Annotation> forwardMappedAnnotations;
+  // the ids of the annotations in the virtual document that were created
+  // by the last call of addForwardMappedAnnotations(Document,Document,List),
+  // these are not mapped back by addBackMappedAnnotations(Document,Document,List)
+  private BitSet forwardMappedAnnotationIds;
   
   protected Logger logger;
 
@@ -175,8 +215,6 @@ public class AnnotatedDocumentTransformer {
 
     this.generateForwardOffsetMap = generateForwardOffsetMap;
     this.generateBackwardOffsetMap = generateBackwardOffsetMap;
-    initMappings();
-    
     // if the annotationParms is null, we have an error
     logger = Logger.getLogger(this.getClass().getName());
     if(annotationParms == null) {
@@ -204,6 +242,7 @@ public class AnnotatedDocumentTransformer {
        i++;
      }
      originalAnnotationParms = new ArrayList<String>(annotationParms);
+     compiledSpecifications = new CompiledSpecifications(theAnnotationParms);
      
      
      for(Object keyObject : processingParms.keySet()) {
@@ -219,6 +258,8 @@ public class AnnotatedDocumentTransformer {
          separatorSame = val;
        } else if(key.equalsIgnoreCase("separatorKeyValue")) {
          separatorKeyValue = val;
+       } else if(key.equalsIgnoreCase("stringChunks")) {
+         stringChunks = Boolean.valueOf(val);
        } else if(key.equalsIgnoreCase("terminator")) {
          terminator = val;
        } else {
@@ -230,40 +271,149 @@ public class AnnotatedDocumentTransformer {
      if(separatorSame == null) {
        separatorSame = separator;
      }
-  }
-
-  private void initMappings() {
-     if(generateForwardOffsetMap) {
-       theForwardOffsetMapping = new ForwardOffsetMapping();
-     }
-     if(generateBackwardOffsetMap) {
-       theBackwardOffsetMapping = new BackwardOffsetMapping();
-     }
-     if(generateBackwardOffsetMap && generateForwardOffsetMap) {
-       forwardMappedAnnotations = new HashSet<Annotation>();
+     // taking @STRING in chunks makes no difference if no separators are
+     // inserted, so always do it then
+     if(separator.equals("") && separatorSame.equals("") &&
+        separatorKeyValue == null) {
+       stringChunks = true;
      }
   }
 
+  /**
+   * Create the virtual document text for the document and the offset maps
+   * as requested when this transformer was created and store the maps so
+   * they can be accessed with {@link #getForwardOffsetMap()} and
+   * {@link #getBackwardOffsetMap()} and used by
+   * {@link #addBackMappedAnnotations(Document, Document, List)} and
+   * {@link #addForwardMappedAnnotations(Document, Document, List)}.
+   * <p>
+   * Since the maps of the last document processed are kept in the
+   * transformer, this must not be used to process several documents
+   * concurrently, use {@link #transform(Document, String)} for that.
+   */
   public String getStringForDocument(Document aDocument, String annSetName) {
-    initMappings();
+    TransformResult result = transform(aDocument, annSetName);
+    theForwardOffsetMapping = result.getForwardOffsetMap();
+    theBackwardOffsetMapping = result.getBackwardOffsetMap();
+    return result.getText();
+  }
+
+  /**
+   * Create the virtual document text for the document and the offset maps
+   * as requested when this transformer was created.
+   * <p>
+   * This does not change the state of the transformer, so a single
+   * transformer can be used to process several documents concurrently.
+   */
+  public TransformResult transform(Document aDocument, String annSetName) {
+    return transform(aDocument, annSetName, null, null);
+  }
+
+  /**
+   * Create the virtual document text and the offset maps for just the part
+   * of the document from fromOffset to toOffset: only annotations starting
+   * in that range are used and @STRING only takes text from that range.
+   * If fromOffset or toOffset is null, the start or end of the document
+   * is used.
+   * <p>
+   * The offsets in the backward map are offsets in the whole original
+   * document, so annotations mapped back with it end up at the correct
+   * position in the original document.
+   */
+  public TransformResult transform(Document aDocument, String annSetName,
+          Long fromOffset, Long toOffset) {
+    return transform(aDocument, annSetName, fromOffset, toOffset,
+            (AnnotationSnapshot)null);
+  }
+
+  /**
+   * Collect and sort the annotations of the document that are relevant
+   * for the specifications once, so that many parts of the document can be
+   * transformed with
+   * {@link #transform(Document, String, Long, Long, AnnotationSnapshot)}
+   * without going through all annotations of the document for each part.
+   * The snapshot does not include annotations added to the document later.
+   */
+  AnnotationSnapshot createSnapshot(Document aDocument, String annSetName) {
+    return AnnotationSnapshot.create(aDocument.getAnnotations(annSetName),
+            compiledSpecifications, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #transform(Document, String, Long, Long)}, but take the
+   * annotations from docSnapshot, created by
+   * {@link #createSnapshot(Document, String)} for the same document and
+   * annotation set, if it is not null.
+   */
+  TransformResult transform(Document aDocument, String annSetName,
+          Long fromOffset, Long toOffset, AnnotationSnapshot docSnapshot) {
+    VirtualText resultText = new VirtualText();
+    TransformResult result;
+    try {
+      result = transform(aDocument, annSetName, fromOffset, toOffset,
+              docSnapshot, resultText);
+    } catch (IOException ex) {
+      // cannot happen when appending to a VirtualText
+      throw new GateRuntimeException(ex);
+    }
+    return new TransformResult(resultText, fromOffset, toOffset,
+            result.getForwardOffsetMap(), result.getBackwardOffsetMap());
+  }
+
+  /**
+   * Write the virtual document text for the document to out while creating
+   * the offset maps as requested when this transformer was created.
+   * The text is written piece by piece as it is created, so it does not have
+   * to be kept in memory if out is e.g. a Writer for a file. The text
+   * of the result returned is null, only the length and the maps are set.
+   * <p>
+   * Like {@link #transform(Document, String)}, this does not change
+   * the state of the transformer.
+   */
+  public TransformResult transform(Document aDocument, String annSetName,
+          Appendable out) throws IOException {
+    return transform(aDocument, annSetName, null, null, out);
+  }
+
+  /**
+   * Write the virtual document text for the part of the document from
+   * fromOffset to toOffset to out, see
+   * {@link #transform(Document, String, Long, Long)} and
+   * {@link #transform(Document, String, Appendable)}.
+   */
+  public TransformResult transform(Document aDocument, String annSetName,
+          Long fromOffset, Long toOffset, Appendable out) throws IOException {
+    return transform(aDocument, annSetName, fromOffset, toOffset, null, out);
+  }
+
+  private TransformResult transform(Document aDocument, String annSetName,
+          Long fromOffset, Long toOffset, AnnotationSnapshot docSnapshot,
+          Appendable out) throws IOException {
+    OffsetMapping forwardMap = null;
+    OffsetMapping backwardMap = null;
+    if(generateForwardOffsetMap) {
+      forwardMap = new ForwardOffsetMapping(compressOffsetMaps);
+    }
+    if(generateBackwardOffsetMap) {
+      backwardMap = new BackwardOffsetMapping(compressOffsetMaps);
+    }
     TextForSpecIterator it =
-            new TextForSpecIterator(aDocument,annSetName,theAnnotationParms, annotationTypes, takeAll, takeOverlapping);
-    StringBuilder resultString =
-            new StringBuilder(aDocument.getContent().size().intValue());
+            new TextForSpecIterator(aDocument,annSetName,fromOffset,toOffset,docSnapshot,compiledSpecifications, takeAll, takeOverlapping, stringChunks);
     boolean first = true;
-    Long lastOffset = -1l;
+    int lastOffset = -1;
     int outOffset = 0;
     int inOffset = 0;
     int sourceLen = 0;
     while(it.hasNext()) {
-      String toAppend = it.next();
+      CharSequence toAppend = it.nextSequence();
       Annotation ann = it.getAnnotation();
+      int startOffset = it.getStartOffset();
+      int endOffset = it.getEndOffset();
+      inOffset = startOffset;
       if(ann == null) { // if @STRING is matched
-        sourceLen = 1;
+        sourceLen = toAppend.length();
       } else {
-        inOffset = ann.getStartNode().getOffset().intValue();
-        sourceLen = (int)(ann.getEndNode().getOffset() - ann.getStartNode().getOffset());
-        //sourceLen = Utils.length(ann);
+        sourceLen = endOffset - startOffset;
       }
       //System.out.println("Got content >"+toAppend+"< annotation: "+ann);
       // check if we process the very first part, if yes, no separator
@@ -273,59 +423,50 @@ public class AnnotatedDocumentTransformer {
       if(first) {
         first = false;
       } else {
-        if(it.getOffset().equals(lastOffset)) {
-          resultString.append(separatorSame);
-          addMappings(ann.getEndNode().getOffset().intValue(), outOffset, 0, separatorSame.length(), false);
+        if(startOffset == lastOffset) {
+          out.append(separatorSame);
+          addMappings(forwardMap, backwardMap, endOffset, outOffset, 0, separatorSame.length(), false);
           outOffset += separatorSame.length();
         } else {
-          resultString.append(separator);
-          // TODO: if we get the result of @STRING, ann is null!
-          // In that case, the
-          if(ann == null) {
-            addMappings((int)(it.getOffset()+it.getContent().length()), outOffset, 0, separator.length(), false);
-          } else {
-            addMappings(ann.getEndNode().getOffset().intValue(), outOffset, 0, separator.length(), false);
-          }
+          out.append(separator);
+          // for @STRING, the end offset is the end of the text taken
+          addMappings(forwardMap, backwardMap, endOffset, outOffset, 0, separator.length(), false);
           outOffset += separator.length();
-          lastOffset = it.getOffset();
+          lastOffset = startOffset;
         }
       }
       // insert the actual string as requested and add a mapping for it
+      int newLength = toAppend.length();
       if(separatorKeyValue != null) {
-        resultString.append(it.getSpec());
-        resultString.append(separatorKeyValue);
-        resultString.append(toAppend);
-        int newLength = it.getSpec().length() + separatorKeyValue.length() + toAppend.length();
-        addMappings(inOffset, outOffset, sourceLen, newLength, false);
+        out.append(it.getSpec());
+        out.append(separatorKeyValue);
+        appendContent(out, toAppend);
+        newLength += it.getSpec().length() + separatorKeyValue.length();
+        addMappings(forwardMap, backwardMap, inOffset, outOffset, sourceLen, newLength, false);
       } else {
-        resultString.append(toAppend);
+        appendContent(out, toAppend);
         //!System.out.println("Appending: >"+toAppend+"< origOff="+inOffset+" virtOff="+outOffset+" srcLen="+sourceLen);
-        addMappings(inOffset, outOffset, sourceLen, toAppend.length(), false);
+        // the text for @STRING is a copy of the original text
+        addMappings(forwardMap, backwardMap, inOffset, outOffset, sourceLen, newLength, ann == null);
       }
-      outOffset += toAppend.length();
+      outOffset += newLength;
       inOffset += sourceLen;
     }
     
     // finally, append the terminator string, if any
     if(terminator != null && !terminator.equals("")) {
-      resultString.append(terminator);
+      out.append(terminator);
+      outOffset += terminator.length();
     }
-    //System.out.println("Content sizes old/new: "+aDocument.getContent().size()+"/"+resultString.length());
-    String tmp = aDocument.getContent().toString().replaceAll("\\n", " ");
-    //System.out.println("Content old: >"+tmp+"<");
-    tmp = resultString.toString().replaceAll("\\n", " ");
-    //System.out.println("Content new: >"+tmp+"<");
+    //System.out.println("Content sizes old/new: "+aDocument.getContent().size()+"/"+outOffset);
     if(generateBackwardOffsetMap) {
-      //System.out.println("backward map generated: "+theBackwardOffsetMapping);
-      //System.out.println("bwmap from: "+theBackwardOffsetMapping.mapFrom);
-      //System.out.println("bwmap to:   "+theBackwardOffsetMapping.mapTo);
+      //System.out.println("backward map generated: "+backwardMap);
     }
     if(generateForwardOffsetMap) {
-      //System.out.println("forward map generated:  "+theForwardOffsetMapping);
-      //System.out.println("fwmap from: "+theForwardOffsetMapping.mapFrom);
-      //System.out.println("fwmap to:   "+theForwardOffsetMapping.mapTo);
+      //System.out.println("forward map generated:  "+forwardMap);
     }
-    return resultString.toString();
+    return new TransformResult(null, outOffset, fromOffset, toOffset,
+            forwardMap, backwardMap);
   }
 
   /** 
@@ -338,105 +479,384 @@ public class AnnotatedDocumentTransformer {
    * @return
    */
   public TextForSpecIterator getIterator(Document doc, String annSetName) {
-    TextForSpecIterator it = new TextForSpecIterator(doc,annSetName,theAnnotationParms,annotationTypes, takeAll, takeOverlapping);
+    TextForSpecIterator it = new TextForSpecIterator(doc,annSetName,compiledSpecifications, takeAll, takeOverlapping, false);
     return it;
   }
 
-  private void addMappedAnnotation(
+  /**
+   * Add a copy of each annotation in theAnns to targetSet, with the offsets
+   * mapped by offsetMap. Annotations with an id in skipIds are ignored, if
+   * skipIds is not null. The ids of the new annotations are set in
+   * addedIds, if that is not null.
+   * The annotations are sorted by start offset first, so the offsets of
+   * all of them can be mapped in a single sweep over the map and they get
+   * added to the target set in offset order.
+   * If skipUnmapped is true, annotations the map does not cover and
+   * annotations that would become empty are ignored instead of creating an
+   * error or an empty annotation: when mapping forward, these are the
+   * annotations for text that is not part of the virtual document.
+   */
+  private static void addMappedAnnotations(
           AnnotationSet targetSet,
-          Annotation theAnn,
-          OffsetMapping offsetMap) {
-    Long newFrom = offsetMap.getFromLong(theAnn.getStartNode().getOffset());
-    Long newTo = offsetMap.getToLong(Math.max(theAnn.getEndNode().getOffset()-1,0l));
-    //!System.out.println("Mapping targetfrom="+newFrom+" targetto="+newTo+" virtfrom="+theAnn.getStartNode().getOffset()+" virtto="+theAnn.getEndNode().getOffset());
+          Collection<Annotation> theAnns,
+          OffsetMapping offsetMap,
+          BitSet skipIds,
+          BitSet addedIds,
+          boolean skipUnmapped) {
+    int n = 0;
+    Annotation[] anns = new Annotation[theAnns.size()];
+    int mapSize = offsetMap.size();
+    for(Annotation ann : theAnns) {
+      if(skipIds != null && skipIds.get(ann.getId())) {
+        continue;
+      }
+      if(skipUnmapped &&
+         (ann.getStartNode().getOffset().intValue() >= mapSize ||
+          Math.max(ann.getEndNode().getOffset().intValue()-1, 0) >= mapSize)) {
+        continue;
+      }
+      anns[n++] = ann;
+    }
+    Arrays.sort(anns, 0, n, START_ID_ORDER);
+    int[] starts = new int[n];
+    int[] ends = new int[n];
+    for(int i = 0; i < n; i++) {
+      starts[i] = anns[i].getStartNode().getOffset().intValue();
+      ends[i] = anns[i].getEndNode().getOffset().intValue();
+    }
+    int[] newStarts = new int[n];
+    int[] newEnds = new int[n];
+    offsetMap.mapRanges(starts, ends, n, newStarts, newEnds);
     try{
-      targetSet.add(newFrom,newTo,
-              theAnn.getType(),
-              // TODO: use a deep copy clone of the original Feature Map instead!?!?
-              theAnn.getFeatures());
+      for(int i = 0; i < n; i++) {
+        if(skipUnmapped && (newStarts[i] > newEnds[i] ||
+           (newStarts[i] == newEnds[i] && starts[i] != ends[i]))) {
+          continue;
+        }
+        Integer id = targetSet.add(Long.valueOf(newStarts[i]), Long.valueOf(newEnds[i]),
+                anns[i].getType(),
+                // TODO: use a deep copy clone of the original Feature Map instead!?!?
+                anns[i].getFeatures());
+        if(addedIds != null) {
+          addedIds.set(id);
+        }
+      }
     } catch (InvalidOffsetException ex) {
       throw new GateRuntimeException(ex);
     }
   }
 
+  /**
+   * The annotations in theAnns with an id of at least firstNewId.
+   */
+  private static Collection<Annotation> getNewAnnotations(
+          AnnotationSet theAnns, Document doc, int firstNewId) {
+    List<Annotation> anns = new ArrayList<Annotation>();
+    int endId = -1;
+    if(doc instanceof DocumentImpl) {
+      endId = ((DocumentImpl)doc).peakAtNextAnnotationId();
+    }
+    if(endId >= 0 && endId - firstNewId < theAnns.size()) {
+      for(int id = firstNewId; id < endId; id++) {
+        Annotation ann = theAnns.get(id);
+        if(ann != null) {
+          anns.add(ann);
+        }
+      }
+    } else {
+      for(Annotation ann : theAnns) {
+        if(ann.getId() >= firstNewId) {
+          anns.add(ann);
+        }
+      }
+    }
+    return anns;
+  }
+
+  private static final Comparator<Annotation> START_ID_ORDER =
+          new Comparator<Annotation>() {
+    public int compare(Annotation a1, Annotation a2) {
+      long s1 = a1.getStartNode().getOffset();
+      long s2 = a2.getStartNode().getOffset();
+      if(s1 != s2) {
+        return s1 < s2 ? -1 : 1;
+      }
+      return a1.getId().compareTo(a2.getId());
+    }
+  };
+
+
+  // append content from the iterator without copying text from the document
+  private static void appendContent(Appendable out, CharSequence content)
+          throws IOException {
+    if(content instanceof ContentSlice) {
+      ContentSlice slice = (ContentSlice)content;
+      out.append(slice.getText(), slice.getStart(), slice.getEnd());
+    } else {
+      out.append(content);
+    }
+  }
 
-  private void addMappings(int origOffset, int targetOffset, int sourceLen, int targetLen, boolean copy) {
-          if(generateForwardOffsetMap) {
+  private static void addMappings(
+          OffsetMapping forwardMap, OffsetMapping backwardMap,
+          int origOffset, int targetOffset, int sourceLen, int targetLen, boolean copy) {
+          if(forwardMap != null) {
               //System.out.println("Adding forward mapping at "+origOffset+" sourcelength="+sourceLen+" targetLen="+targetLen);
-              theForwardOffsetMapping.addMapping(
+              forwardMap.addMapping(
                     origOffset, sourceLen, targetLen, copy);
           }
-          if(generateBackwardOffsetMap) {
+          if(backwardMap != null) {
             //System.out.println("Adding backward mapping at "+targetOffset+" sourcelength="+sourceLen+" targetLen="+targetLen);
-            theBackwardOffsetMapping.addMapping(
+            backwardMap.addMapping(
                     origOffset, sourceLen, targetLen, copy);
           }
 
   }
 
 
+  /**
+   * Map the annotations from the virtual document back to the original
+   * document, using the backward offset map of the last document processed
+   * by {@link #getStringForDocument(Document, String)}. The annotations
+   * created by the last call of
+   * {@link #addForwardMappedAnnotations(Document, Document, List)} are not
+   * mapped back.
+   */
   public void addBackMappedAnnotations(Document originalDoc, Document virtualDoc,
           List<String> annotationSetsTypes) {
     if(!generateBackwardOffsetMap) {
       throw new GateRuntimeException(
         "Cannot create a backward mapping when backward map creation is disabled");
     }
-    // TODO: before selecting an annotation to map back, check in
-    // forwardMappedAnnotations (if non-null) if this annotation is new
-    // or one of the forward mapped ones. In the latter case, ignore.
+    addBackMappedAnnotations(getBackwardOffsetMap(), originalDoc, virtualDoc,
+            annotationSetsTypes, forwardMappedAnnotationIds, 0);
+  }
+
+  /**
+   * Map the annotations from the virtual document created by
+   * {@link #transform(Document, String)} back to the original document,
+   * using the backward offset map of the result.
+   */
+  public void addBackMappedAnnotations(TransformResult result,
+          Document originalDoc, Document virtualDoc,
+          List<String> annotationSetsTypes) {
+    addBackMappedAnnotations(result, originalDoc, virtualDoc,
+            annotationSetsTypes, null);
+  }
+
+  /**
+   * Like {@link #addBackMappedAnnotations(TransformResult, Document, Document, List)}
+   * but annotations with an id in skipIds are not mapped back. This is used
+   * with the ids returned by
+   * {@link #addForwardMappedAnnotations(TransformResult, Document, Document, List)}
+   * so that annotations which were only forward mapped do not get copied
+   * back to the original document.
+   */
+  public void addBackMappedAnnotations(TransformResult result,
+          Document originalDoc, Document virtualDoc,
+          List<String> annotationSetsTypes, BitSet skipIds) {
+    if(result.getBackwardOffsetMap() == null) {
+      throw new GateRuntimeException(
+        "Cannot create a backward mapping when backward map creation is disabled");
+    }
+    addBackMappedAnnotations(result.getBackwardOffsetMap(),
+            originalDoc, virtualDoc, annotationSetsTypes, skipIds, 0);
+  }
+
+  /**
+   * Like {@link #addBackMappedAnnotations(TransformResult, Document, Document, List)}
+   * but only the annotations with an id of at least firstNewId are mapped
+   * back. If firstNewId is the id the virtual document would have given to
+   * the next annotation before the language analyser was run, only the
+   * annotations created by the language analyser are mapped back.
+   * If the virtual document is a DocumentImpl, the annotations are looked
+   * up by id when there are fewer new ids than annotations in a set.
+   */
+  public void addBackMappedAnnotations(TransformResult result,
+          Document originalDoc, Document virtualDoc,
+          List<String> annotationSetsTypes, int firstNewId) {
+    if(result.getBackwardOffsetMap() == null) {
+      throw new GateRuntimeException(
+        "Cannot create a backward mapping when backward map creation is disabled");
+    }
+    addBackMappedAnnotations(result.getBackwardOffsetMap(),
+            originalDoc, virtualDoc, annotationSetsTypes, null, firstNewId);
+  }
+
+  /**
+   * Map the annotations from a virtual document back to the original
+   * document with a backward offset map that was kept after the virtual
+   * document was created, e.g. as a {@link StoredOffsetMapping}. Only the
+   * annotations with an id of at least firstNewId are mapped back, all if
+   * firstNewId is 0.
+   */
+  public static void addBackMappedAnnotations(OffsetMapping backwardMap,
+          Document originalDoc, Document virtualDoc,
+          List<String> annotationSetsTypes, int firstNewId) {
+    addBackMappedAnnotations(backwardMap, originalDoc, virtualDoc,
+            annotationSetsTypes, null, firstNewId);
+  }
+
+  private static void addBackMappedAnnotations(OffsetMapping backwardMap,
+          Document originalDoc, Document virtualDoc,
+          List<String> annotationSetsTypes, BitSet skipIds, int firstNewId) {
     if(annotationSetsTypes == null) {
       return;
     } else {
       // go through list of sets and types and process
       for (String setType : annotationSetsTypes) {
-        // if setType contains a dot, assume it is a set name followed by
-        // a type, otherwise assume it is just a set name
-        String[] tmp1 = setType.split("\\.",2);
-        String annotationSetName = tmp1[0];
-        String annotationTypeName = (tmp1.length == 2) ? tmp1[1] : null;
-        if(annotationSetName.equals("")) {
-          annotationSetName = null;
-        }
-        AnnotationSet theAnns = virtualDoc.getAnnotations(annotationSetName);
-        AnnotationSet targetSet = originalDoc.getAnnotations(annotationSetName);
-        if(annotationTypeName != null) {
-          theAnns = theAnns.get(annotationTypeName);
-        }
-        for (Annotation theAnn : theAnns) {
-          addMappedAnnotation(targetSet,theAnn,getBackwardOffsetMap());
-        }
+        AnnotationSet targetSet =
+                originalDoc.getAnnotations(getAnnotationSetName(setType));
+        addMappedAnnotations(targetSet,
+                getAnnotationsToMap(virtualDoc, setType, firstNewId),
+                backwardMap,skipIds,null,false);
       }
     }
   }
 
+  /**
+   * Map the annotations stored in a cache for a virtual document with the
+   * same text as the one of the result back to the original document.
+   */
+  void addBackMappedAnnotations(TransformResult result,
+          Document originalDoc, CachedAnnotations cached) {
+    if(result.getBackwardOffsetMap() == null) {
+      throw new GateRuntimeException(
+        "Cannot create a backward mapping when backward map creation is disabled");
+    }
+    int n = cached.size();
+    int[] newStarts = new int[n];
+    int[] newEnds = new int[n];
+    result.getBackwardOffsetMap().mapRanges(cached.getStarts(),
+            cached.getEnds(), n, newStarts, newEnds);
+    try {
+      for(int i = 0; i < n; i++) {
+        originalDoc.getAnnotations(cached.getSetName(i)).add(
+                Long.valueOf(newStarts[i]), Long.valueOf(newEnds[i]),
+                cached.getType(i), cached.getFeatures(i));
+      }
+    } catch (InvalidOffsetException ex) {
+      throw new GateRuntimeException(ex);
+    }
+  }
+
+  /**
+   * The name of the annotation set in an entry of a list of annotation
+   * set or set.type names, null for the default set.
+   */
+  static String getAnnotationSetName(String setType) {
+    // if setType contains a dot, assume it is a set name followed by
+    // a type, otherwise assume it is just a set name
+    String annotationSetName = setType.split("\\.",2)[0];
+    if(annotationSetName.equals("")) {
+      annotationSetName = null;
+    }
+    return annotationSetName;
+  }
+
+  /**
+   * The annotation type in an entry of a list of annotation set or set.type
+   * names, null if the entry is just a set name.
+   */
+  static String getAnnotationTypeName(String setType) {
+    String[] tmp1 = setType.split("\\.",2);
+    return (tmp1.length == 2) ? tmp1[1] : null;
+  }
+
+  /**
+   * The annotations of the document selected by an entry of a list of
+   * annotation set or set.type names.
+   */
+  static AnnotationSet getAnnotations(Document doc, String setType) {
+    String annotationTypeName = getAnnotationTypeName(setType);
+    AnnotationSet theAnns = doc.getAnnotations(getAnnotationSetName(setType));
+    if(annotationTypeName != null) {
+      theAnns = theAnns.get(annotationTypeName);
+    }
+    return theAnns;
+  }
+
+  /**
+   * The annotations of the document selected by an entry of a list of
+   * annotation set or set.type names, only those with an id of at least
+   * firstNewId if that is larger than 0.
+   */
+  static Collection<Annotation> getAnnotationsToMap(Document doc,
+          String setType, int firstNewId) {
+    AnnotationSet theAnns = getAnnotations(doc, setType);
+    if(firstNewId > 0) {
+      return getNewAnnotations(theAnns, doc, firstNewId);
+    }
+    return theAnns;
+  }
+
+  /**
+   * Map the annotations from the original document to the virtual document,
+   * using the forward offset map of the last document processed by
+   * {@link #getStringForDocument(Document, String)}. Annotations for text
+   * which is not part of the virtual document are not mapped.
+   */
   public void addForwardMappedAnnotations(Document originalDoc, Document virtualDoc,
           List<String> annotationSetsTypes) {
     if(!generateForwardOffsetMap) {
       throw new GateRuntimeException(
         "Cannot create a forward mapping when forward map creation is disabled");
     }
+    forwardMappedAnnotationIds = addForwardMappedAnnotations(
+            getForwardOffsetMap(), null, null, originalDoc, virtualDoc,
+            annotationSetsTypes);
+  }
+
+  /**
+   * Map the annotations from the original document to the virtual document
+   * created by {@link #transform(Document, String)}, using the forward
+   * offset map of the result. If only part of the document was transformed,
+   * only the annotations contained in that part are mapped.
+   *
+   * @return the ids of the annotations created in the virtual document
+   */
+  public BitSet addForwardMappedAnnotations(TransformResult result,
+          Document originalDoc, Document virtualDoc,
+          List<String> annotationSetsTypes) {
+    if(result.getForwardOffsetMap() == null) {
+      throw new GateRuntimeException(
+        "Cannot create a forward mapping when forward map creation is disabled");
+    }
+    return addForwardMappedAnnotations(result.getForwardOffsetMap(),
+            result.getFromOffset(), result.getToOffset(),
+            originalDoc, virtualDoc, annotationSetsTypes);
+  }
+
+  private BitSet addForwardMappedAnnotations(OffsetMapping forwardMap,
+          Long fromOffset, Long toOffset,
+          Document originalDoc, Document virtualDoc,
+          List<String> annotationSetsTypes) {
+    BitSet addedIds = new BitSet();
     // For now: if null, do not do anything!
     if(annotationSetsTypes == null) {
     } else {
       for(String setType : annotationSetsTypes) {
-        // if setType contains a dot, assume it is a set name followed by
-        // a type, otherwise assume it is just a set name
-        String[] tmp1 = setType.split("\\.",2);
-        String annotationSetName = tmp1[0];
-        String annotationTypeName = (tmp1.length == 2) ? tmp1[1] : null;
-        if(annotationSetName.equals("")) {
-          annotationSetName = null;
-        }
-        AnnotationSet theAnns = originalDoc.getAnnotations(annotationSetName);
-        AnnotationSet targetSet = virtualDoc.getAnnotations(annotationSetName);
-        if(annotationTypeName != null) {
-          theAnns = theAnns.get(annotationTypeName);
-        }
-        for (Annotation theAnn : theAnns) {
-          addMappedAnnotation(targetSet,theAnn,getForwardOffsetMap());
+        AnnotationSet targetSet =
+                virtualDoc.getAnnotations(getAnnotationSetName(setType));
+        AnnotationSet theAnns;
+        if(fromOffset != null || toOffset != null) {
+          // select the range with the offset index of the whole set first
+          // and only then the type, so for a small part of a large document
+          // only the annotations in that part are looked at
+          theAnns = originalDoc.getAnnotations(getAnnotationSetName(setType))
+                  .getContained(fromOffset == null ? 0L : fromOffset,
+                  toOffset == null ? originalDoc.getContent().size() : toOffset);
+          String annotationTypeName = getAnnotationTypeName(setType);
+          if(annotationTypeName != null) {
+            theAnns = theAnns.get(annotationTypeName);
+          }
+        } else {
+          theAnns = getAnnotations(originalDoc, setType);
         }
+        addMappedAnnotations(targetSet,theAnns,forwardMap,null,addedIds,true);
       }
     }
+    return addedIds;
   }
 
 }
@@ -0,0 +1,210 @@
+/*
+ *  AnnotationSnapshot.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.FeatureMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of those annotations of a document which can be matched by
+ * some compiled annotation specification list, stored in parallel
+ * primitive arrays.
+ * <p>
+ * Only annotations of the types used in the specifications which start
+ * within the range of offsets to process are included. The annotations
+ * are sorted by start offset and by id for identical start offsets, so all
+ * annotations starting at some offset occupy a consecutive range of indices.
+ * For each annotation, the values of the features used by the specifications
+ * for its type are resolved once when the snapshot is created.
+ *
+ * @author Johann Petrak
+ */
+class AnnotationSnapshot {
+
+  // used in the feature value array for features that are not present
+  // (a feature that is present can have the value null)
+  private static final Object NO_VALUE = new Object();
+
+  private int size;
+  private int[] starts;
+  private int[] ends;
+  private short[] typeIds;
+  private Annotation[] annotations;
+  // the feature values for annotation k and feature slot s are at
+  // index k*nrFeatureSlots+s
+  private Object[] featureValues;
+  private int nrFeatureSlots;
+
+  private AnnotationSnapshot() {
+  }
+
+  /**
+   * Create the snapshot of all annotations in the set that are relevant for
+   * the specifications and start at an offset from from to to-1.
+   */
+  static AnnotationSnapshot create(AnnotationSet annSet,
+          CompiledSpecifications specs, int from, int to) {
+    String[] typeNames = specs.getTypeNames();
+    Map<String,Short> typeIdsByName = new HashMap<String,Short>();
+    List<Annotation> anns = new ArrayList<Annotation>();
+    for(short t = 0; t < typeNames.length; t++) {
+      typeIdsByName.put(typeNames[t], t);
+      AnnotationSet typeSet = annSet.get(typeNames[t]);
+      if(typeSet == null) {
+        continue;
+      }
+      for(Annotation ann : typeSet) {
+        int start = ann.getStartNode().getOffset().intValue();
+        if(start >= from && start < to) {
+          anns.add(ann);
+        }
+      }
+    }
+    Collections.sort(anns, new Comparator<Annotation>() {
+      public int compare(Annotation a1, Annotation a2) {
+        long s1 = a1.getStartNode().getOffset();
+        long s2 = a2.getStartNode().getOffset();
+        if(s1 != s2) {
+          return s1 < s2 ? -1 : 1;
+        }
+        return a1.getId().compareTo(a2.getId());
+      }
+    });
+    AnnotationSnapshot snapshot = new AnnotationSnapshot();
+    int n = anns.size();
+    snapshot.size = n;
+    snapshot.starts = new int[n];
+    snapshot.ends = new int[n];
+    snapshot.typeIds = new short[n];
+    snapshot.annotations = anns.toArray(new Annotation[n]);
+    String[] featureNames = specs.getFeatureNames();
+    snapshot.nrFeatureSlots = featureNames.length;
+    snapshot.featureValues = new Object[n*featureNames.length];
+    for(int k = 0; k < n; k++) {
+      Annotation ann = snapshot.annotations[k];
+      short typeId = typeIdsByName.get(ann.getType());
+      snapshot.starts[k] = ann.getStartNode().getOffset().intValue();
+      snapshot.ends[k] = ann.getEndNode().getOffset().intValue();
+      snapshot.typeIds[k] = typeId;
+      int[] slots = specs.getFeatureSlots(typeId);
+      if(slots.length > 0) {
+        FeatureMap fm = ann.getFeatures();
+        for(int slot : slots) {
+          Object value = NO_VALUE;
+          if(fm != null && fm.containsKey(featureNames[slot])) {
+            value = fm.get(featureNames[slot]);
+          }
+          snapshot.featureValues[k*snapshot.nrFeatureSlots+slot] = value;
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * The part of this snapshot with the annotations that start at an offset
+   * from from to to-1. The sorted start offsets are searched and only that
+   * part is copied, so slicing a snapshot of the whole document for each
+   * of many segments takes time proportional to the size of each segment,
+   * not to the number of annotations in the document.
+   */
+  AnnotationSnapshot slice(int from, int to) {
+    int first = firstStartingAt(from);
+    int last = Math.max(first, firstStartingAt(to));
+    AnnotationSnapshot slice = new AnnotationSnapshot();
+    slice.size = last - first;
+    slice.starts = Arrays.copyOfRange(starts, first, last);
+    slice.ends = Arrays.copyOfRange(ends, first, last);
+    slice.typeIds = Arrays.copyOfRange(typeIds, first, last);
+    slice.annotations = Arrays.copyOfRange(annotations, first, last);
+    slice.nrFeatureSlots = nrFeatureSlots;
+    slice.featureValues = Arrays.copyOfRange(featureValues,
+            first*nrFeatureSlots, last*nrFeatureSlots);
+    return slice;
+  }
+
+  // the index of the first annotation that starts at or after offset,
+  // found by binary search
+  private int firstStartingAt(int offset) {
+    int low = 0;
+    int high = size;
+    while(low < high) {
+      int mid = (low + high) >>> 1;
+      if(starts[mid] < offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int getStart(int k) {
+    return starts[k];
+  }
+
+  int getEnd(int k) {
+    return ends[k];
+  }
+
+  short getTypeId(int k) {
+    return typeIds[k];
+  }
+
+  Annotation getAnnotation(int k) {
+    return annotations[k];
+  }
+
+  boolean hasFeature(int k, int slot) {
+    return featureValues[k*nrFeatureSlots+slot] != NO_VALUE;
+  }
+
+  Object getFeatureValue(int k, int slot) {
+    return featureValues[k*nrFeatureSlots+slot];
+  }
+
+  /**
+   * The index of the first annotation that starts at or after offset,
+   * searching from index from onwards. Returns size() if there is none.
+   */
+  int firstStartingAtOrAfter(int offset, int from) {
+    int k = from;
+    while(k < size && starts[k] < offset) {
+      k++;
+    }
+    return k;
+  }
+
+  /**
+   * The index after the last annotation that starts at the same offset as
+   * the annotation with index k.
+   */
+  int endOfSameStart(int k) {
+    int start = starts[k];
+    int e = k+1;
+    while(e < size && starts[e] == start) {
+      e++;
+    }
+    return e;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *  ArrayOffsetMapStore.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.util.GateRuntimeException;
+import java.util.Arrays;
+
+/**
+ * Offset map storage that keeps the from and to offset for every single
+ * mapped offset in int arrays. Lookups are direct array accesses, but the
+ * memory needed grows with the length of the mapped document.
+ *
+ * @author Johann Petrak
+ */
+class ArrayOffsetMapStore extends OffsetMapStore {
+  // The from and to offsets for each offset that has been mapped so far.
+  // Only the first size elements of the arrays are used, the arrays
+  // grow as needed.
+  private int[] mapFrom = new int[INITIAL_CAPACITY];
+  private int[] mapTo = new int[INITIAL_CAPACITY];
+  private int size = 0;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  int size() {
+    return size;
+  }
+
+  int getFrom(int offset) {
+    checkIndex(offset);
+    return mapFrom[offset];
+  }
+
+  int getTo(int offset) {
+    checkIndex(offset);
+    return mapTo[offset];
+  }
+
+  void fillRange(int pos, int length, int from, int to) {
+    if(length <= 0) {
+      return;
+    }
+    prepareRange(pos, length, from, to);
+    Arrays.fill(mapFrom, pos, pos+length, from);
+    Arrays.fill(mapTo, pos, pos+length, to);
+  }
+
+  void fillCopyRange(int pos, int length, int from) {
+    if(length <= 0) {
+      return;
+    }
+    prepareRange(pos, length, from, from+1);
+    for(int i = 0; i < length; i++) {
+      mapFrom[pos+i] = from+i;
+      mapTo[pos+i] = from+i+1;
+    }
+  }
+
+  private void prepareRange(int pos, int length, int from, int to) {
+    // this makes sure we cannot get a index out of bounds exception
+    // - if the index pos is already part of the map, we show a warning
+    // - if the index pos is exactly one more than the current last index
+    //   silently do it
+    // - if the index pos is larger than one more than the current index,
+    //   fill the missing elements with the first from and to values
+    //   and show a warning
+    if(pos < 0) {
+      throw new GateRuntimeException("Trying to set map element at index "+pos);
+    }
+    ensureCapacity(pos+length);
+    if(pos < size) {
+      logger.warn("Trying to set map element that exists: "+pos+" size is "+size);
+    } else if(pos > size) {
+      logger.warn("Trying to set map element after gap: "+pos+" size is "+size);
+      Arrays.fill(mapFrom, size, pos, from);
+      Arrays.fill(mapTo, size, pos, to);
+    }
+    if(pos+length > size) {
+      size = pos+length;
+    }
+  }
+
+  void trimToSize() {
+    if(mapFrom.length > size) {
+      mapFrom = Arrays.copyOf(mapFrom, size);
+      mapTo = Arrays.copyOf(mapTo, size);
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if(capacity > mapFrom.length) {
+      int newCapacity = Math.max(capacity, mapFrom.length + (mapFrom.length >> 1));
+      mapFrom = Arrays.copyOf(mapFrom, newCapacity);
+      mapTo = Arrays.copyOf(mapTo, newCapacity);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ *  AsyncDocumentWriter.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.creole.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes the output files of the {@link CopyVirtualDocumentPR} in a
+ * separate thread, so the thread that runs the pipeline does not have to
+ * wait for the file system.
+ * <p>
+ * The outputs are passed to the writer thread through a bounded queue: if
+ * the writer cannot keep up, {@link #submit(Output)} waits until there is
+ * room in the queue, so at most queueSize documents are waiting to be
+ * written. The outputs are written in the order in which they were
+ * submitted. An error that occurs while writing is thrown by the next call
+ * of submit or by {@link #finish()}.
+ *
+ * @author Johann Petrak
+ */
+class AsyncDocumentWriter {
+
+  /**
+   * Something to write: the serialization and writing is done in
+   * {@link #write()}, {@link #release()} is always called afterwards, also
+   * if write was not called because of an earlier error.
+   */
+  static abstract class Output {
+    abstract void write() throws Exception;
+    void release() {
+    }
+  }
+
+  // marks the end of the outputs in the queue
+  private static final Output END = new Output() {
+    void write() {
+    }
+  };
+
+  private BlockingQueue<Output> queue;
+  private Thread thread;
+  // the first error that occurred while writing
+  private AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+  AsyncDocumentWriter(int queueSize) {
+    queue = new ArrayBlockingQueue<Output>(queueSize);
+    thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while(true) {
+            Output output = queue.take();
+            if(output == END) {
+              return;
+            }
+            try {
+              if(error.get() == null) {
+                output.write();
+              }
+            } catch (Throwable ex) {
+              error.compareAndSet(null, ex);
+            } finally {
+              output.release();
+            }
+          }
+        } catch (InterruptedException ex) {
+          // stopped
+        }
+      }
+    }, "CopyVirtualDocumentPR-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Add an output to the queue, waiting if the queue is full. An error that
+   * occurred in the writer thread since the last call is thrown here.
+   */
+  void submit(Output output) throws ExecutionException {
+    checkError();
+    try {
+      queue.put(output);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      output.release();
+      throw new ExecutionException(ex);
+    }
+  }
+
+  /**
+   * Wait until all submitted outputs have been written and stop the thread.
+   */
+  void finish() throws ExecutionException {
+    try {
+      queue.put(END);
+      thread.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException(ex);
+    }
+    checkError();
+  }
+
+  private void checkError() throws ExecutionException {
+    Throwable ex = error.getAndSet(null);
+    if(ex != null) {
+      throw new ExecutionException("Error writing a virtual document", ex);
+    }
+  }
+}
@@ -13,6 +13,12 @@ import gate.util.GateRuntimeException;
 
 
 class BackwardOffsetMapping extends OffsetMapping {
+    public BackwardOffsetMapping() {
+      this(false);
+    }
+    public BackwardOffsetMapping(boolean compressed) {
+      super(compressed);
+    }
     public void addMapping(
           int sourceOffset,
           int sourceLength, int targetLength,
@@ -20,14 +26,16 @@ class BackwardOffsetMapping extends OffsetMapping {
       // each output range maps back to exactly the offsets of the input range
       // no difficulties like with the forward mapping here as there cannot
       // be overlaps in the output ranges
-      if(currentTargetOffset != mapFrom.size() || currentTargetOffset != mapTo.size()) {
-        throw new GateRuntimeException("Problem adding backward mapping: currentTargetOffset="+currentTargetOffset+" mapFrom.size="+mapFrom.size()+" mapTo.size="+mapTo.size());
+      if(currentTargetOffset != size()) {
+        throw new GateRuntimeException("Problem adding backward mapping: currentTargetOffset="+currentTargetOffset+" size="+size());
       }
-      for(int i=0; i<targetLength; i++) {
-        mapFrom.add(currentTargetOffset+i, sourceOffset);
-        //!System.out.println("to mapFrom: "+(currentTargetOffset+i)+"--"+sourceOffset);
-        mapTo.add(currentTargetOffset+i, sourceOffset+sourceLength);
-        //!System.out.println("to mapTo:  "+(currentTargetOffset+i)+"--"+(sourceOffset+sourceLength));
+      // if the output range is a copy of the input range, each output offset
+      // maps back to just the corresponding input offset
+      if(isCopy) {
+        fillCopyRange(currentTargetOffset, targetLength, sourceOffset);
+      } else {
+        fillRange(currentTargetOffset, targetLength,
+                sourceOffset, sourceOffset+sourceLength);
       }
       // adapt
       currentTargetOffset += targetLength;
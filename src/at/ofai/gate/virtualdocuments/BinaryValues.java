@@ -0,0 +1,179 @@
+/*
+ *  BinaryValues.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Reading and writing of the values used in the binary formats of this
+ * plugin: variable length integers, strings of any length and feature
+ * values, where the common simple types are written directly and only
+ * other values are written using object serialization.
+ *
+ * @author Johann Petrak
+ */
+final class BinaryValues {
+
+  private BinaryValues() {
+  }
+
+  // the tags for the kinds of feature keys and values
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int INTEGER = 2;
+  private static final int LONG = 3;
+  private static final int DOUBLE = 4;
+  private static final int BOOLEAN = 5;
+  private static final int SERIALIZED = 6;
+
+  // longer strings are serialized, since writeUTF cannot write
+  // strings of more than 64k bytes
+  private static final int MAX_UTF_LENGTH = 16384;
+
+  /**
+   * Write a non-negative int in as few bytes as needed, 7 bits per byte.
+   */
+  static void writeVarInt(DataOutput out, int value) throws IOException {
+    if(value < 0) {
+      throw new IllegalArgumentException("Negative value: "+value);
+    }
+    while((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+      int b = in.readByte();
+      value |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable length int");
+  }
+
+  /**
+   * Write an int that may be negative, small negative values also take few
+   * bytes.
+   */
+  static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+    int zigzag = (value << 1) ^ (value >> 31);
+    while((zigzag & ~0x7F) != 0) {
+      out.writeByte((zigzag & 0x7F) | 0x80);
+      zigzag >>>= 7;
+    }
+    out.writeByte(zigzag);
+  }
+
+  static int readSignedVarInt(DataInput in) throws IOException {
+    int zigzag = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+      int b = in.readByte();
+      zigzag |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+      }
+    }
+    throw new IOException("Invalid variable length int");
+  }
+
+  /**
+   * Write a string of any length as UTF-8.
+   */
+  static void writeString(DataOutput out, String string) throws IOException {
+    byte[] bytes = string.getBytes("UTF-8");
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[readVarInt(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * Write a feature key or value.
+   *
+   * @throws IOException if the value cannot be serialized
+   */
+  static void writeValue(DataOutput out, Object value) throws IOException {
+    if(value == null) {
+      out.writeByte(NULL);
+    } else if(value instanceof String &&
+              ((String)value).length() <= MAX_UTF_LENGTH) {
+      out.writeByte(STRING);
+      out.writeUTF((String)value);
+    } else if(value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer)value);
+    } else if(value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long)value);
+    } else if(value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double)value);
+    } else if(value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean)value);
+    } else {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+      objectOut.writeObject(value);
+      objectOut.close();
+      out.writeByte(SERIALIZED);
+      out.writeInt(bytes.size());
+      out.write(bytes.toByteArray());
+    }
+  }
+
+  static Object readValue(DataInput in) throws IOException {
+    int tag = in.readByte();
+    switch(tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return in.readUTF();
+      case INTEGER:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case DOUBLE:
+        return in.readDouble();
+      case BOOLEAN:
+        return in.readBoolean();
+      case SERIALIZED:
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        ObjectInputStream objectIn =
+                new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+          return objectIn.readObject();
+        } catch (ClassNotFoundException ex) {
+          throw new IOException("Cannot restore a feature value: " + ex);
+        } finally {
+          objectIn.close();
+        }
+      default:
+        throw new IOException("Invalid value tag: " + tag);
+    }
+  }
+}
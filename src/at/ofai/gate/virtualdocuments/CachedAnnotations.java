@@ -0,0 +1,221 @@
+/*
+ *  CachedAnnotations.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Annotation;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The annotations the language analyser created for a virtual document,
+ * as stored by {@link AnalysisResultCache}.
+ * <p>
+ * The annotations are sorted by start offset and id, so they can be mapped
+ * back with a single call of {@link OffsetMapping#mapRanges}. In the cache,
+ * they are kept in the compact form created by {@link #toBytes()}, which
+ * also makes sure that every document that gets them gets its own copies
+ * of the feature maps.
+ *
+ * @author Johann Petrak
+ */
+class CachedAnnotations {
+
+  private int size;
+  private String[] setNames;
+  private String[] types;
+  private int[] starts;
+  private int[] ends;
+  private FeatureMap[] features;
+
+  private CachedAnnotations(int size) {
+    this.size = size;
+    setNames = new String[size];
+    types = new String[size];
+    starts = new int[size];
+    ends = new int[size];
+    features = new FeatureMap[size];
+  }
+
+  /**
+   * Get the annotations of the document selected by a list of annotation
+   * set or set.type names, only those with an id of at least firstNewId
+   * if that is larger than 0.
+   */
+  static CachedAnnotations create(Document doc, List<String> setsTypes,
+          int firstNewId) {
+    final List<Annotation> anns = new ArrayList<Annotation>();
+    List<String> annSetNames = new ArrayList<String>();
+    for(String setType : setsTypes) {
+      String annSetName = AnnotatedDocumentTransformer.getAnnotationSetName(setType);
+      for(Annotation ann :
+          AnnotatedDocumentTransformer.getAnnotationsToMap(doc, setType, firstNewId)) {
+        anns.add(ann);
+        annSetNames.add(annSetName);
+      }
+    }
+    // sort the indices, so we can keep the set name for each annotation
+    List<Integer> order = new ArrayList<Integer>(anns.size());
+    for(int i = 0; i < anns.size(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      public int compare(Integer i1, Integer i2) {
+        Annotation a1 = anns.get(i1);
+        Annotation a2 = anns.get(i2);
+        long s1 = a1.getStartNode().getOffset();
+        long s2 = a2.getStartNode().getOffset();
+        if(s1 != s2) {
+          return s1 < s2 ? -1 : 1;
+        }
+        int c = a1.getId().compareTo(a2.getId());
+        return c != 0 ? c : i1.compareTo(i2);
+      }
+    });
+    CachedAnnotations cached = new CachedAnnotations(anns.size());
+    for(int k = 0; k < cached.size; k++) {
+      Annotation ann = anns.get(order.get(k));
+      cached.setNames[k] = annSetNames.get(order.get(k));
+      cached.types[k] = ann.getType();
+      cached.starts[k] = ann.getStartNode().getOffset().intValue();
+      cached.ends[k] = ann.getEndNode().getOffset().intValue();
+      cached.features[k] = ann.getFeatures();
+    }
+    return cached;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * The name of the annotation set of annotation k, null for the default
+   * set.
+   */
+  String getSetName(int k) {
+    return setNames[k];
+  }
+
+  String getType(int k) {
+    return types[k];
+  }
+
+  int[] getStarts() {
+    return starts;
+  }
+
+  int[] getEnds() {
+    return ends;
+  }
+
+  FeatureMap getFeatures(int k) {
+    return features[k];
+  }
+
+  /**
+   * Serialize the annotations. Set names and types are only stored once
+   * and feature keys and values of the common simple types are written
+   * directly, only other values are written using object serialization.
+   *
+   * @throws IOException if a feature value cannot be serialized
+   */
+  byte[] toBytes() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    Map<String,Integer> stringIds = new HashMap<String,Integer>();
+    List<String> strings = new ArrayList<String>();
+    int[] setNameIds = new int[size];
+    int[] typeIds = new int[size];
+    for(int k = 0; k < size; k++) {
+      setNameIds[k] = stringId(setNames[k], stringIds, strings);
+      typeIds[k] = stringId(types[k], stringIds, strings);
+    }
+    out.writeInt(strings.size());
+    for(String string : strings) {
+      out.writeUTF(string);
+    }
+    out.writeInt(size);
+    for(int k = 0; k < size; k++) {
+      out.writeInt(setNameIds[k]);
+      out.writeInt(typeIds[k]);
+      out.writeInt(starts[k]);
+      out.writeInt(ends[k] - starts[k]);
+      if(features[k] == null) {
+        out.writeInt(0);
+      } else {
+        out.writeInt(features[k].size());
+        for(Map.Entry<Object,Object> entry : features[k].entrySet()) {
+          BinaryValues.writeValue(out, entry.getKey());
+          BinaryValues.writeValue(out, entry.getValue());
+        }
+      }
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  // the id of a string in the string table, -1 for null
+  private static int stringId(String string, Map<String,Integer> stringIds,
+          List<String> strings) {
+    if(string == null) {
+      return -1;
+    }
+    Integer id = stringIds.get(string);
+    if(id == null) {
+      id = strings.size();
+      stringIds.put(string, id);
+      strings.add(string);
+    }
+    return id;
+  }
+
+  /**
+   * Restore the annotations serialized with {@link #toBytes()}.
+   */
+  static CachedAnnotations fromBytes(byte[] data) throws IOException {
+    DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(data));
+    try {
+      String[] strings = new String[in.readInt()];
+      for(int i = 0; i < strings.length; i++) {
+        strings[i] = in.readUTF();
+      }
+      CachedAnnotations cached = new CachedAnnotations(in.readInt());
+      for(int k = 0; k < cached.size; k++) {
+        int setNameId = in.readInt();
+        cached.setNames[k] = setNameId < 0 ? null : strings[setNameId];
+        cached.types[k] = strings[in.readInt()];
+        cached.starts[k] = in.readInt();
+        cached.ends[k] = cached.starts[k] + in.readInt();
+        cached.features[k] = Factory.newFeatureMap();
+        int nrFeatures = in.readInt();
+        for(int f = 0; f < nrFeatures; f++) {
+          Object key = BinaryValues.readValue(in);
+          cached.features[k].put(key, BinaryValues.readValue(in));
+        }
+      }
+      return cached;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ *  CompiledSpecifications.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The annotation specification list compiled into a dispatch table that maps
+ * each annotation type to the specifications which refer to it, in order of
+ * decreasing priority.
+ * <p>
+ * Each annotation type used in the specifications gets a numeric type id
+ * and each distinct feature name used gets a feature slot number. These are
+ * used by {@link AnnotationSnapshot} to store the relevant annotations of a
+ * document in primitive arrays. The snapshot is then used to classify all
+ * the annotations found at some offset in a single pass: for each
+ * specification, the longest matching annotation is determined without
+ * creating any intermediate annotation sets.
+ *
+ * @author Johann Petrak
+ */
+class CompiledSpecifications {
+
+  private List<AnnotationParm> annotationParms;
+
+  // the type names by type id
+  private String[] typeNames;
+
+  private Map<String,Integer> typeIds = new HashMap<String,Integer>();
+
+  // for each type id, the numbers of the specifications for that
+  // type in increasing order (decreasing priority)
+  private int[][] specNosByTypeId;
+
+  // the feature names by feature slot
+  private String[] featureNames;
+
+  // for each type id, the feature slots that need to be resolved for
+  // annotations of that type
+  private int[][] featureSlotsByTypeId;
+
+  // for each specification, the feature slot that needs to be present or -1
+  private int[] requiredFeatureSlots;
+
+  // for each specification, the string representation as returned by the
+  // iterator
+  private String[] specStrings;
+
+  // the number of the @STRING specification or -1 if there is none
+  private int stringSpecNo = -1;
+
+  private Set<String> annotationTypes = new HashSet<String>();
+
+  CompiledSpecifications(List<AnnotationParm> parms) {
+    annotationParms = parms;
+    int n = parms.size();
+    requiredFeatureSlots = new int[n];
+    specStrings = new String[n];
+    List<String> types = new ArrayList<String>();
+    List<List<Integer>> specNos = new ArrayList<List<Integer>>();
+    List<String> features = new ArrayList<String>();
+    List<Set<Integer>> featureSlots = new ArrayList<Set<Integer>>();
+    for(int i = 0; i < n; i++) {
+      AnnotationParm parm = parms.get(i);
+      specStrings[i] = parm.toString();
+      requiredFeatureSlots[i] = -1;
+      String typeName = parm.getTypeName();
+      annotationTypes.add(typeName);
+      if(typeName.equals("@STRING")) {
+        stringSpecNo = i;
+        continue;
+      }
+      Integer typeId = typeIds.get(typeName);
+      if(typeId == null) {
+        typeId = types.size();
+        typeIds.put(typeName, typeId);
+        types.add(typeName);
+        specNos.add(new ArrayList<Integer>());
+        featureSlots.add(new HashSet<Integer>());
+      }
+      specNos.get(typeId).add(i);
+      String featureName = parm.getFeatureName();
+      if(featureName != null) {
+        int slot = features.indexOf(featureName);
+        if(slot < 0) {
+          slot = features.size();
+          features.add(featureName);
+        }
+        requiredFeatureSlots[i] = slot;
+        featureSlots.get(typeId).add(slot);
+      }
+    }
+    if(types.size() > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many annotation types in the specifications");
+    }
+    typeNames = types.toArray(new String[types.size()]);
+    featureNames = features.toArray(new String[features.size()]);
+    specNosByTypeId = new int[typeNames.length][];
+    featureSlotsByTypeId = new int[typeNames.length][];
+    for(int t = 0; t < typeNames.length; t++) {
+      specNosByTypeId[t] = toIntArray(specNos.get(t));
+      featureSlotsByTypeId[t] = toIntArray(featureSlots.get(t));
+    }
+  }
+
+  private static int[] toIntArray(Iterable<Integer> values) {
+    List<Integer> list = new ArrayList<Integer>();
+    for(Integer value : values) {
+      list.add(value);
+    }
+    int[] arr = new int[list.size()];
+    for(int i = 0; i < arr.length; i++) {
+      arr[i] = list.get(i);
+    }
+    return arr;
+  }
+
+  int size() {
+    return requiredFeatureSlots.length;
+  }
+
+  AnnotationParm getAnnotationParm(int specNo) {
+    return annotationParms.get(specNo);
+  }
+
+  String getSpecString(int specNo) {
+    return specStrings[specNo];
+  }
+
+  boolean isStringSpec(int specNo) {
+    return specNo == stringSpecNo;
+  }
+
+  boolean hasStringSpec() {
+    return stringSpecNo >= 0;
+  }
+
+  Set<String> getAnnotationTypes() {
+    return annotationTypes;
+  }
+
+  /**
+   * The names of the annotation types that can be matched, indexed by
+   * type id.
+   */
+  String[] getTypeNames() {
+    return typeNames;
+  }
+
+  /**
+   * The feature names that are used in the specifications, indexed by
+   * feature slot.
+   */
+  String[] getFeatureNames() {
+    return featureNames;
+  }
+
+  int[] getFeatureSlots(int typeId) {
+    return featureSlotsByTypeId[typeId];
+  }
+
+  /**
+   * The feature slot of the feature a specification requires or -1 if it
+   * does not require a feature.
+   */
+  int getRequiredFeatureSlot(int specNo) {
+    return requiredFeatureSlots[specNo];
+  }
+
+  /**
+   * Find, for each specification, the longest of the annotations with the
+   * snapshot indices from to to-1 that matches the specification and
+   * does not end after toOffset.
+   * The snapshot index of the result is stored in best which must have one
+   * element per specification; elements for specifications without a match
+   * are set to -1. If several annotations of the same length match, the
+   * one with the lowest id is used.
+   *
+   * @return true if any specification matched one of the annotations
+   */
+  boolean classify(AnnotationSnapshot snapshot, int from, int to,
+          int toOffset, int[] best) {
+    boolean found = false;
+    for(int i = 0; i < best.length; i++) {
+      best[i] = -1;
+    }
+    // the snapshot is sorted by id for identical start offsets, so the
+    // first of several annotations with identical length is the one we want
+    for(int k = from; k < to; k++) {
+      int end = snapshot.getEnd(k);
+      if(end > toOffset) {
+        continue;
+      }
+      int length = end - snapshot.getStart(k);
+      for(int specNo : specNosByTypeId[snapshot.getTypeId(k)]) {
+        int slot = requiredFeatureSlots[specNo];
+        if(slot >= 0 && !snapshot.hasFeature(k, slot)) {
+          continue;
+        }
+        found = true;
+        int other = best[specNo];
+        if(other < 0 || length > snapshot.getEnd(other)-snapshot.getStart(other)) {
+          best[specNo] = k;
+        }
+      }
+    }
+    return found;
+  }
+}
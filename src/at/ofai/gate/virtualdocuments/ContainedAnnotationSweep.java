@@ -0,0 +1,112 @@
+/*
+ *  ContainedAnnotationSweep.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the annotations within successive offset ranges with a single sweep
+ * through the annotations, which are sorted only once.
+ * <p>
+ * For each range from,to, {@link #next(long, long)} returns the same
+ * annotations as AnnotationSet.get(from,to) would: those which start before
+ * from and end after from and those which start at or after from and before
+ * to. They are returned in offset order, by start offset, then end offset,
+ * then id. The ranges must be processed in order of increasing start offset.
+ * If the ranges do not overlap, e.g. sentences, the total work is linear in
+ * the number of annotations.
+ *
+ * @author Johann Petrak
+ */
+class ContainedAnnotationSweep {
+
+  private Annotation[] anns;
+  private long[] starts;
+  private long[] ends;
+  // the index of the first annotation that starts at or after the start
+  // of the last range
+  private int passed = 0;
+  // the indices of the annotations before passed which end after the start
+  // of the last range, in increasing order
+  private int[] active = new int[16];
+  private int nrActive = 0;
+  private long lastFrom = Long.MIN_VALUE;
+
+  ContainedAnnotationSweep(Collection<Annotation> annotations) {
+    anns = annotations.toArray(new Annotation[annotations.size()]);
+    Arrays.sort(anns, OFFSET_ID_ORDER);
+    starts = new long[anns.length];
+    ends = new long[anns.length];
+    for(int i = 0; i < anns.length; i++) {
+      starts[i] = anns[i].getStartNode().getOffset();
+      ends[i] = anns[i].getEndNode().getOffset();
+    }
+  }
+
+  /**
+   * The annotations for the range from,to. The start offset must not be
+   * smaller than the start offset of the previous range.
+   */
+  List<Annotation> next(long from, long to) {
+    if(from < lastFrom) {
+      throw new IllegalArgumentException(
+        "Range starts at "+from+" before the previous range at "+lastFrom);
+    }
+    lastFrom = from;
+    // forget the annotations which do not reach beyond from any more
+    int kept = 0;
+    for(int a = 0; a < nrActive; a++) {
+      if(ends[active[a]] > from) {
+        active[kept++] = active[a];
+      }
+    }
+    nrActive = kept;
+    while(passed < anns.length && starts[passed] < from) {
+      if(ends[passed] > from) {
+        if(nrActive == active.length) {
+          active = Arrays.copyOf(active, nrActive*2);
+        }
+        active[nrActive++] = passed;
+      }
+      passed++;
+    }
+    List<Annotation> result = new ArrayList<Annotation>();
+    if(to < from) {
+      return result;
+    }
+    for(int a = 0; a < nrActive; a++) {
+      result.add(anns[active[a]]);
+    }
+    for(int i = passed; i < anns.length && starts[i] < to; i++) {
+      result.add(anns[i]);
+    }
+    return result;
+  }
+
+  private static final Comparator<Annotation> OFFSET_ID_ORDER =
+          new Comparator<Annotation>() {
+    public int compare(Annotation a1, Annotation a2) {
+      int c = a1.getStartNode().getOffset().compareTo(a2.getStartNode().getOffset());
+      if(c == 0) {
+        c = a1.getEndNode().getOffset().compareTo(a2.getEndNode().getOffset());
+      }
+      if(c == 0) {
+        c = a1.getId().compareTo(a2.getId());
+      }
+      return c;
+    }
+  };
+}
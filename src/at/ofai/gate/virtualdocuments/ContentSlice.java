@@ -0,0 +1,62 @@
+/*
+ *  ContentSlice.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+/**
+ * A part of the text of a document, as returned by
+ * {@link TextForSpecIterator#nextSequence()} for content that is copied
+ * from the document. The text is only copied if toString() is called,
+ * appending {@link #getText()} from {@link #getStart()} to {@link #getEnd()}
+ * to an Appendable avoids the intermediate copy.
+ *
+ * @author Johann Petrak
+ */
+class ContentSlice implements CharSequence {
+
+  private final String text;
+  private final int start;
+  private final int end;
+
+  ContentSlice(String text, int start, int end) {
+    this.text = text;
+    this.start = start;
+    this.end = end;
+  }
+
+  String getText() {
+    return text;
+  }
+
+  int getStart() {
+    return start;
+  }
+
+  int getEnd() {
+    return end;
+  }
+
+  public int length() {
+    return end - start;
+  }
+
+  public char charAt(int index) {
+    return text.charAt(start + index);
+  }
+
+  public CharSequence subSequence(int from, int to) {
+    return text.substring(start + from, start + to);
+  }
+
+  @Override
+  public String toString() {
+    return text.substring(start, end);
+  }
+}
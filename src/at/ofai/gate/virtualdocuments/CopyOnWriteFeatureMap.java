@@ -0,0 +1,156 @@
+/*
+ *  CopyOnWriteFeatureMap.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.FeatureMap;
+import gate.creole.ontology.Ontology;
+import gate.util.SimpleFeatureMapImpl;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A feature map that starts out as a read-only view of another feature map
+ * and copies the features of that map when it is changed for the first time
+ * or when a method is used that could change it later, e.g. entrySet().
+ * The other feature map is never changed through this map.
+ * <p>
+ * As long as the features have not been copied, changes of the other map
+ * are visible in this map, so this must only be used while the other map
+ * does not get changed.
+ *
+ * @author Johann Petrak
+ */
+class CopyOnWriteFeatureMap extends SimpleFeatureMapImpl {
+
+  private static final long serialVersionUID = 1L;
+
+  // the map we are a view of, null once the features have been copied
+  private transient FeatureMap source;
+
+  CopyOnWriteFeatureMap(FeatureMap source) {
+    this.source = source;
+  }
+
+  private void copy() {
+    if(source != null) {
+      FeatureMap features = source;
+      source = null;
+      super.putAll(features);
+    }
+  }
+
+  @Override
+  public Object get(Object key) {
+    return source != null ? source.get(key) : super.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return source != null ? source.containsKey(key) : super.containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    return source != null ? source.containsValue(value) : super.containsValue(value);
+  }
+
+  @Override
+  public int size() {
+    return source != null ? source.size() : super.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return source != null ? source.isEmpty() : super.isEmpty();
+  }
+
+  @Override
+  public boolean subsumes(FeatureMap aFeatureMap) {
+    return source != null ? source.subsumes(aFeatureMap) : super.subsumes(aFeatureMap);
+  }
+
+  @Override
+  public boolean subsumes(Ontology ontology, FeatureMap aFeatureMap) {
+    return source != null ?
+      source.subsumes(ontology, aFeatureMap) : super.subsumes(ontology, aFeatureMap);
+  }
+
+  @Override
+  public boolean subsumes(FeatureMap aFeatureMap, Set<? extends Object> aFeatureNamesSet) {
+    return source != null ?
+      source.subsumes(aFeatureMap, aFeatureNamesSet) :
+      super.subsumes(aFeatureMap, aFeatureNamesSet);
+  }
+
+  @Override
+  public Object put(Object key, Object value) {
+    copy();
+    return super.put(key, value);
+  }
+
+  @Override
+  public void putAll(Map<? extends Object, ? extends Object> map) {
+    copy();
+    super.putAll(map);
+  }
+
+  @Override
+  public Object remove(Object key) {
+    copy();
+    return super.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    source = null;
+    super.clear();
+  }
+
+  @Override
+  public Set<Object> keySet() {
+    copy();
+    return super.keySet();
+  }
+
+  @Override
+  public Collection<Object> values() {
+    copy();
+    return super.values();
+  }
+
+  @Override
+  public Set<Map.Entry<Object,Object>> entrySet() {
+    copy();
+    return super.entrySet();
+  }
+
+  @Override
+  public Object clone() {
+    copy();
+    return super.clone();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return source != null ? source.equals(other) : super.equals(other);
+  }
+
+  @Override
+  public int hashCode() {
+    return source != null ? source.hashCode() : super.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return source != null ? source.toString() : super.toString();
+  }
+}
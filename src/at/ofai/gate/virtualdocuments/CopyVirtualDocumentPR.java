@@ -18,6 +18,8 @@ import gate.Factory;
 import gate.FeatureMap;
 import gate.LanguageAnalyser;
 import gate.corpora.DocumentImpl;
+import gate.corpora.DocumentStaxUtils;
+import gate.corpora.SerialCorpusImpl;
 import gate.creole.AbstractLanguageAnalyser;
 import gate.creole.ControllerAwarePR;
 import gate.creole.ExecutionException;
@@ -26,14 +28,21 @@ import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
+import gate.persist.PersistenceException;
 import gate.util.GateRuntimeException;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import javax.naming.InvalidNameException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /**
@@ -151,20 +160,142 @@ public class CopyVirtualDocumentPR
   }
   private String copiedDocNameSuffix;
 
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Save only the text of the virtual document to a .txt file instead of GATE XML", defaultValue = "false")
+  public void setSaveAsText(Boolean yesno) {
+    saveAsText = yesno;
+  }
+  public Boolean getSaveAsText() {
+    return saveAsText;
+  }
+  private Boolean saveAsText = false;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Save the virtual document with its offset maps in the compact binary format (.vdoc) instead of GATE XML", defaultValue = "false")
+  public void setSaveAsBinary(Boolean yesno) {
+    saveAsBinary = yesno;
+  }
+  public Boolean getSaveAsBinary() {
+    return saveAsBinary;
+  }
+  private Boolean saveAsBinary = false;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Keep the map from the virtual to the original document offsets: as a document feature and, when saving to the directory as text or XML, in a .vmap file", defaultValue = "false")
+  public void setStoreOffsetMapping(Boolean yesno) {
+    storeOffsetMapping = yesno;
+  }
+  public Boolean getStoreOffsetMapping() {
+    return storeOffsetMapping;
+  }
+  private Boolean storeOffsetMapping = false;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Encoding of the files saved to the directory (default: UTF-8)", defaultValue = "UTF-8")
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+  public String getEncoding() {
+    return encoding;
+  }
+  private String encoding = OutputFiles.DEFAULT_ENCODING;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Compress the files saved to the directory with gzip and append .gz to their names", defaultValue = "false")
+  public void setCompressOutput(Boolean yesno) {
+    compressOutput = yesno;
+  }
+  public Boolean getCompressOutput() {
+    return compressOutput;
+  }
+  private Boolean compressOutput = false;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If larger than 0, write the files to the directory in a separate thread, with at most this many documents waiting to be written", defaultValue = "0")
+  public void setWriterQueueSize(Integer size) {
+    writerQueueSize = size;
+  }
+  public Integer getWriterQueueSize() {
+    return writerQueueSize;
+  }
+  private Integer writerQueueSize = 0;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Number of documents to add to a persistent output corpus and save to its datastore together", defaultValue = "1")
+  public void setOutputCorpusBatchSize(Integer size) {
+    outputCorpusBatchSize = size;
+  }
+  public Integer getOutputCorpusBatchSize() {
+    return outputCorpusBatchSize;
+  }
+  private Integer outputCorpusBatchSize = 1;
+
+  private String outputEncoding = OutputFiles.DEFAULT_ENCODING;
+  private boolean compress;
+  private XMLOutputFactory xmlOutputFactory;
+  // writes the files in a separate thread if writerQueueSize is larger than 0
+  private AsyncDocumentWriter asyncWriter;
+  // the documents waiting to be saved to a persistent output corpus
+  private List<Document> pendingDocs = new ArrayList<Document>();
+
   private boolean forwardcopy = false;
 
   AnnotatedDocumentTransformer annotatedDocumentTransformer;
 
   @Override
-  public void execute() {
+  public void execute() throws ExecutionException {
     fireStatusChanged("CopyVirtualDocumentPR processing: "
             + getDocument().getName());
 
 
+    if(saveAsText && outputCorpus == null && directoryFile != null &&
+       annotatedDocumentTransformer != null) {
+      // we only need the text in the file, so write it directly while it
+      // gets created, no need to create the document
+      final String newName = document.getName()+copiedDocNameSuffix;
+      final File outFile = OutputFiles.getFile(directoryFile,
+              newName+".txt", compress);
+      if(asyncWriter != null) {
+        // the writer thread only gets the finished text
+        final TransformResult result = annotatedDocumentTransformer.transform(
+                getDocument(), inputAnnotationSetName);
+        final StoredOffsetMapping stored = getOffsetMappingToStore(result);
+        asyncWriter.submit(new AsyncDocumentWriter.Output() {
+          void write() {
+            writeText(outFile, result.getTextSequence());
+            writeOffsetMapping(newName, stored);
+          }
+        });
+      } else {
+        Writer writer = openWriter(outFile);
+        TransformResult result;
+        try {
+          result = annotatedDocumentTransformer.transform(
+                  getDocument(), inputAnnotationSetName, writer);
+          writer.close();
+        } catch (IOException ex) {
+          closeQuietly(writer);
+          throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
+        }
+        writeOffsetMapping(newName, getOffsetMappingToStore(result));
+      }
+      fireStatusChanged("CopyVirtualDocumentPR completed");
+      return;
+    }
+
     String newText = "";
+    TransformResult transformResult = null;
     if(annotatedDocumentTransformer != null) {
-      newText = annotatedDocumentTransformer.getStringForDocument(
+      transformResult = annotatedDocumentTransformer.transform(
             getDocument(), inputAnnotationSetName);
+      newText = transformResult.getText();
     } else {
       newText = getDocument().getContent().toString();
     }
@@ -186,10 +317,13 @@ public class CopyVirtualDocumentPR
       for(Object k : docfeats.keySet()) {
         thefeats.put(k, docfeats.get(k));
       }
+      // a mapping stored for the current document does not fit the copy
+      thefeats.remove(StoredOffsetMapping.FEATURE_NAME);
 
       String theName = document.getName();
+      StoredOffsetMapping storedMapping = null;
       // create a copy of the current document
-      Document newDoc;
+      final Document newDoc;
       try {
         newDoc = (Document) Factory.createResource(
               //theclass,
@@ -204,45 +338,72 @@ public class CopyVirtualDocumentPR
       if(annotatedDocumentTransformer != null) {
         if(forwardcopy) {
           annotatedDocumentTransformer.
-            addForwardMappedAnnotations(document, newDoc, annotationSetNames);
+            addForwardMappedAnnotations(transformResult, document, newDoc, annotationSetNames);
+        }
+        storedMapping = getOffsetMappingToStore(transformResult);
+        if(storedMapping != null) {
+          // the string form, so the feature survives any way of saving
+          newDoc.getFeatures().put(StoredOffsetMapping.FEATURE_NAME,
+            storedMapping.toString());
         }
       } else {
         // TODO: which annotation sets to copy to the copied doc here?
         // TODO: at least copy the ones specified!
       }
 
+      // we keep the document if it is added to a transient corpus, otherwise
+      // we drop it.
+      final boolean keepDoc =
+        outputCorpus != null && outputCorpus.getLRPersistenceId() == null;
+
+      // if the document does not get added to a persistent corpus, the
+      // writer thread can write and delete it, otherwise we need to write
+      // it before it gets unloaded.
+      boolean writeAsync = asyncWriter != null &&
+        (outputCorpus == null || keepDoc);
+
       if(directoryFile != null) {
-        String out = "";
-        if(getSavePreservingFormat()) {
-          AnnotationSet as = newDoc.getAnnotations(annotationSetNames.get(0));
-          out = newDoc.toXml(as,addFeaturesToPreservingFormat);
+        final File outFile = OutputFiles.getFile(directoryFile,
+                theName+copiedDocNameSuffix+getFileExtension(), compress);
+        if(writeAsync) {
+          final String text = newText;
+          final String originalName = theName;
+          final TransformResult result = transformResult;
+          final StoredOffsetMapping stored = storedMapping;
+          asyncWriter.submit(new AsyncDocumentWriter.Output() {
+            void write() {
+              writeOutput(outFile, newDoc, text, originalName, result, stored);
+            }
+            @Override
+            void release() {
+              if(!keepDoc) {
+                Factory.deleteResource(newDoc);
+              }
+            }
+          });
         } else {
-          out = newDoc.toXml();
+          writeOutput(outFile, newDoc, newText, theName, transformResult,
+                  storedMapping);
         }
-        File outFile = new File(directoryFile, theName+copiedDocNameSuffix+".xml");
-        PrintStream outStream;
-        try {
-          outStream = new PrintStream(outFile);
-        } catch (FileNotFoundException ex) {
-          throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
-        }
-        outStream.print(out);
-        outStream.close();
       }
 
-      // we keep the document if it is added to a transient corpus, otherwise
-      // we drop it.
-      boolean keepDoc = false;
+      // documents for a persistent corpus are saved in batches if the
+      // batch size is larger than 1
+      boolean batched = outputCorpus != null && !keepDoc &&
+        outputCorpusBatchSize != null && outputCorpusBatchSize > 1;
 
-      if(outputCorpus != null) {
+      if(batched) {
+        pendingDocs.add(newDoc);
+        if(pendingDocs.size() >= outputCorpusBatchSize) {
+          saveBatch();
+        }
+      } else if(outputCorpus != null) {
         outputCorpus.add(newDoc);
-        if(outputCorpus.getLRPersistenceId() == null) {
-          keepDoc = true;
-        } else {
+        if(!keepDoc) {
           outputCorpus.unloadDocument(newDoc);
         }
       }
-      if(!keepDoc) {
+      if(!keepDoc && !batched && !(directoryFile != null && writeAsync)) {
         Factory.deleteResource(newDoc);
       }
 
@@ -251,14 +412,246 @@ public class CopyVirtualDocumentPR
 
   }
   
+  private String getFileExtension() {
+    if(saveAsText) {
+      return ".txt";
+    } else if(saveAsBinary) {
+      return VirtualDocumentFile.EXTENSION;
+    } else {
+      return ".xml";
+    }
+  }
+
+  /**
+   * Write the new document to the file in the format selected by the
+   * parameters.
+   */
+  private void writeOutput(File outFile, Document newDoc, String text,
+          String originalName, TransformResult result,
+          StoredOffsetMapping storedMapping) {
+    if(saveAsText) {
+      writeText(outFile, text);
+    } else if(saveAsBinary) {
+      writeBinary(outFile, newDoc, originalName, result);
+    } else {
+      writeDocument(outFile, newDoc);
+    }
+    if(!saveAsBinary) {
+      writeOffsetMapping(newDoc.getName(), storedMapping);
+    }
+  }
+
+  /**
+   * The backward offset mapping of the result to keep for the virtual
+   * document if storeOffsetMapping is true, otherwise null. If the current
+   * document is itself a virtual document with a stored mapping, the two
+   * mappings are composed, so the new virtual document maps directly to
+   * the original document of the chain.
+   */
+  private StoredOffsetMapping getOffsetMappingToStore(TransformResult result) {
+    if(!storeOffsetMapping || result == null) {
+      return null;
+    }
+    StoredOffsetMapping previous;
+    try {
+      previous = StoredOffsetMapping.getFromFeature(document);
+    } catch (IllegalArgumentException ex) {
+      throw new GateRuntimeException("Invalid offset mapping for document "+
+        document.getName(), ex);
+    }
+    if(previous == null) {
+      return new StoredOffsetMapping(result.getBackwardOffsetMap(),
+              document.getName());
+    }
+    OffsetMapping previousMapping = previous.getMapping();
+    if(previousMapping.size() != document.getContent().size()) {
+      throw new GateRuntimeException("The offset mapping for document "+
+        document.getName()+" is for a text of length "+
+        previousMapping.size()+" but the document has length "+
+        document.getContent().size());
+    }
+    return new StoredOffsetMapping(
+            OffsetMapping.compose(result.getBackwardOffsetMap(), previousMapping),
+            previous.getDocumentName());
+  }
+
+  /**
+   * Write the stored mapping, if there is one, to a file next to the file
+   * for the virtual document.
+   */
+  private void writeOffsetMapping(String newName,
+          StoredOffsetMapping storedMapping) {
+    if(storedMapping == null) {
+      return;
+    }
+    File outFile = OutputFiles.getFile(directoryFile,
+            newName+StoredOffsetMapping.EXTENSION, compress);
+    OutputStream out = null;
+    try {
+      out = OutputFiles.openOutputStream(outFile, compress);
+      storedMapping.write(out);
+      out.close();
+    } catch (IOException ex) {
+      closeQuietly(out);
+      throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
+    }
+  }
+
+  private void writeBinary(File outFile, Document newDoc, String originalName,
+          TransformResult result) {
+    OutputStream out = null;
+    try {
+      out = OutputFiles.openOutputStream(outFile, compress);
+      VirtualDocumentFile.write(newDoc, originalName, result, out);
+      out.close();
+    } catch (IOException ex) {
+      closeQuietly(out);
+      throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
+    }
+  }
+
+  private void writeText(File outFile, CharSequence text) {
+    Writer writer = openWriter(outFile);
+    try {
+      writer.append(text);
+      writer.close();
+    } catch (IOException ex) {
+      closeQuietly(writer);
+      throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
+    }
+  }
+
+  private void writeDocument(File outFile, Document newDoc) {
+    Writer writer = openWriter(outFile);
+    try {
+      if(getSavePreservingFormat()) {
+        AnnotationSet as = newDoc.getAnnotations(annotationSetNames.get(0));
+        writer.write(newDoc.toXml(as,addFeaturesToPreservingFormat));
+      } else {
+        writeXml(newDoc, writer);
+      }
+      writer.close();
+    } catch (IOException ex) {
+      closeQuietly(writer);
+      throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
+    } catch (XMLStreamException ex) {
+      closeQuietly(writer);
+      throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if(closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException ex) {
+      // we already report the first error
+    }
+  }
+
+  /**
+   * Write the document in GATE XML format, like toXml() but without creating
+   * the whole XML as a string first. The XML declaration states the
+   * encoding the file is written in.
+   */
+  private void writeXml(Document doc, Writer writer) throws XMLStreamException {
+    XMLStreamWriter xsw = xmlOutputFactory.createXMLStreamWriter(writer);
+    xsw.writeStartDocument(outputEncoding, "1.0");
+    xsw.writeCharacters("\n");
+    DocumentStaxUtils.writeDocument(doc, xsw, "");
+    xsw.writeEndDocument();
+    xsw.close();
+  }
+
+  private Writer openWriter(File outFile) {
+    try {
+      return OutputFiles.openWriter(outFile, outputEncoding, compress);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
+    }
+  }
+
   @Override
   public void controllerExecutionAborted(Controller arg0, Throwable arg1)
   		throws ExecutionException {
+    try {
+      saveBatch();
+    } finally {
+      finishAsyncWriter();
+    }
   }
 
   @Override
   public void controllerExecutionFinished(Controller arg0)
   		throws ExecutionException {
+    try {
+      saveBatch();
+    } finally {
+      finishAsyncWriter();
+    }
+  }
+
+  /**
+   * Add the documents waiting for a persistent output corpus to the corpus,
+   * save them all with a single sync of the corpus and unload them.
+   * The sync of the corpus writes all its loaded documents, so they are
+   * unloaded without being saved again.
+   */
+  private void saveBatch() throws ExecutionException {
+    if(pendingDocs.isEmpty()) {
+      return;
+    }
+    List<Document> docs = new ArrayList<Document>(pendingDocs);
+    pendingDocs.clear();
+    boolean saved = false;
+    try {
+      outputCorpus.addAll(docs);
+      outputCorpus.getDataStore().sync(outputCorpus);
+      saved = true;
+      for(Document doc : docs) {
+        if(outputCorpus instanceof SerialCorpusImpl) {
+          ((SerialCorpusImpl)outputCorpus).unloadDocument(doc, false);
+        } else {
+          outputCorpus.unloadDocument(doc);
+        }
+      }
+    } catch (PersistenceException ex) {
+      throw new ExecutionException(getNotSavedMessage(docs), ex);
+    } catch (RuntimeException ex) {
+      if(saved) {
+        throw ex;
+      }
+      throw new ExecutionException(getNotSavedMessage(docs), ex);
+    } finally {
+      for(Document doc : docs) {
+        Factory.deleteResource(doc);
+      }
+    }
+  }
+
+  private static String getNotSavedMessage(List<Document> docs) {
+    StringBuilder names = new StringBuilder();
+    for(Document doc : docs) {
+      if(names.length() > 0) {
+        names.append(", ");
+      }
+      names.append(doc.getName());
+    }
+    return "Could not save documents to the output corpus, these documents are lost: "+names;
+  }
+
+  /**
+   * Wait until the writer thread has written all documents, if there is
+   * one, and throw an error that occurred there.
+   */
+  private void finishAsyncWriter() throws ExecutionException {
+    if(asyncWriter != null) {
+      AsyncDocumentWriter writer = asyncWriter;
+      asyncWriter = null;
+      writer.finish();
+    }
   }
 
   @Override
@@ -268,6 +661,8 @@ public class CopyVirtualDocumentPR
   }
 
   public void startup() throws ExecutionException {
+    finishAsyncWriter();
+    saveBatch();
     forwardcopy = false;
     if(annotationSetNames != null && annotationSetNames.size() > 0) {
       forwardcopy = true;
@@ -281,6 +676,9 @@ public class CopyVirtualDocumentPR
         throw new GateRuntimeException("Annotation set must not contain a type (have a dot) if save preserving format is true");
       }
     }
+    if(saveAsText && saveAsBinary) {
+      throw new GateRuntimeException("Save as text and save as binary cannot both be true");
+    }
     if(directoryUrl != null) {
       try {
         directoryFile = new File(directoryUrl.toURI());
@@ -290,16 +688,29 @@ public class CopyVirtualDocumentPR
     } else {
       directoryFile = null;
     }
+    try {
+      outputEncoding = OutputFiles.getEncoding(encoding);
+    } catch (IllegalArgumentException ex) {
+      throw new ExecutionException(ex.getMessage());
+    }
+    compress = compressOutput != null && compressOutput;
+    if(xmlOutputFactory == null) {
+      xmlOutputFactory = XMLOutputFactory.newInstance();
+    }
     if(directoryUrl == null && outputCorpus == null) {
       throw new GateRuntimeException("Output corpus and directory URL may not be both missing");
     }
+    if(directoryFile != null && writerQueueSize != null && writerQueueSize > 0) {
+      asyncWriter = new AsyncDocumentWriter(writerQueueSize);
+    }
     try {
       annotatedDocumentTransformer = null;
       if(getSourceSpecifications() != null && getSourceSpecifications().size() > 0) {
         annotatedDocumentTransformer =
           new AnnotatedDocumentTransformer(
           getSourceSpecifications(), getProcessingOptions(),
-          forwardcopy, false);
+          forwardcopy, saveAsBinary || storeOffsetMapping);
+        annotatedDocumentTransformer.setCompressOffsetMaps(true);
       }
     } catch (InvalidNameException ex) {
       throw new ExecutionException(ex);
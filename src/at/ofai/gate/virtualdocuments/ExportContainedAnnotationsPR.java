@@ -27,7 +27,7 @@ import gate.creole.metadata.RunTime;
 import gate.util.GateRuntimeException;
 import gate.util.OffsetComparator;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -46,7 +46,8 @@ import org.apache.log4j.Logger;
  * The PR also takes a suffix (which could be an extension) and a directory URL
  * and will create a new file for each document processed, storing the file
  * in the directory and forming the file name by appending the suffix to the
- * document name
+ * document name. The files are written with the given encoding, UTF-8 by
+ * default, and can be compressed with gzip.
  * @author Johann Petrak
  */
 @CreoleResource(name = "Export Contained Annotations PR",
@@ -147,6 +148,34 @@ public class ExportContainedAnnotationsPR
   }
   URL directoryUrl;
 
+  @RunTime
+  @Optional
+  @CreoleParameter(
+    comment = "Encoding of the files written (default: UTF-8)",
+    defaultValue = "UTF-8"
+    )
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+  public String getEncoding() {
+    return encoding;
+  }
+  String encoding = OutputFiles.DEFAULT_ENCODING;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+    comment = "Compress the files written with gzip and append .gz to their names",
+    defaultValue = "false"
+    )
+  public void setCompressOutput(Boolean yesno) {
+    this.compressOutput = yesno;
+  }
+  public Boolean getCompressOutput() {
+    return compressOutput;
+  }
+  Boolean compressOutput = false;
+
   File directoryFile;
 
   protected Logger logger;
@@ -183,11 +212,13 @@ public class ExportContainedAnnotationsPR
     fileName = getDocument().getName() + getFileNameSuffix();
 
     // 1) File to write the export stuff to
-    File outFile = new File(directoryFile,fileName);
+    boolean compress = compressOutput != null && compressOutput;
+    File outFile = OutputFiles.getFile(directoryFile,fileName,compress);
     PrintStream outStream;
     try {
-      outStream = new PrintStream(outFile);
-    } catch (FileNotFoundException ex) {
+      outStream = OutputFiles.openPrintStream(outFile,
+              OutputFiles.getEncoding(encoding),compress);
+    } catch (IOException ex) {
       throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile(),ex);
     }
 
@@ -199,15 +230,19 @@ public class ExportContainedAnnotationsPR
 
     if(containingAnnotationTypeName != null && !containingAnnotationTypeName.equals(""))  {
       AnnotationSet containingAnnotations = inputAS.get(containingAnnotationTypeName);
-      //Iterator<Annotation> it = inputAnnotations.iterator();
-      //String content = document.getContent().toString();
 
+      // sort the containing and the contained annotations once and find
+      // the contained annotations for all containing annotations in a
+      // single sweep
       List<Annotation> containingList = new ArrayList<Annotation>(containingAnnotations);
       Collections.sort(containingList,new OffsetComparator());
+      ContainedAnnotationSweep sweep =
+        new ContainedAnnotationSweep(inputAS.get(containedAnnotationTypeName));
       for(Annotation containing : containingList) {
         // export the contained for the span covered by containing
-        exportContainedAnnotations(outStream,containing.getStartNode().getOffset(),
-                containing.getEndNode().getOffset(),inputAS);
+        exportContainedAnnotations(outStream,sweep.next(
+                containing.getStartNode().getOffset(),
+                containing.getEndNode().getOffset()));
       }
     } else {
       // export the contained for the whole document span
@@ -215,28 +250,41 @@ public class ExportContainedAnnotationsPR
               inputAS);
     }
     outStream.close();
+    if(outStream.checkError()) {
+      throw new GateRuntimeException("Cannot write to file "+outFile.getAbsoluteFile());
+    }
     fireStatusChanged("ExportContainedAnnotationsPR completed");
 
   }
 
   protected boolean exportContainedAnnotations(PrintStream outStream, Long from, Long to,
           AnnotationSet inputAS) {
-    AnnotationSet filteredAS = inputAS.get(containedAnnotationTypeName,from,to);
-    List<Annotation> filteredList = new ArrayList<Annotation>(filteredAS);
-    Collections.sort(filteredList,new OffsetComparator());
-    boolean haveSomething = false;
-    for(Annotation ann : filteredList) {
+    ContainedAnnotationSweep sweep =
+      new ContainedAnnotationSweep(inputAS.get(containedAnnotationTypeName));
+    return exportContainedAnnotations(outStream,sweep.next(from,to));
+  }
+
+  /**
+   * Write one line with the values for the contained annotations, which must
+   * already be in offset order. Nothing is written if the list is empty.
+   */
+  protected boolean exportContainedAnnotations(PrintStream outStream,
+          List<Annotation> containedList) {
+    if(containedList.isEmpty()) {
+      return false;
+    }
+    StringBuilder line = new StringBuilder();
+    for(Annotation ann : containedList) {
       String toExport;
       if(featureName == null || featureName.equals("")) {
         toExport = Utils.stringFor(document, ann);
       } else {
         toExport = ann.getFeatures().get(featureName).toString();
       }
-      outStream.print(toExport+" ");
-      haveSomething = true;
+      line.append(toExport).append(' ');
     }
-    if(haveSomething) { outStream.println(); }
-    return haveSomething;
+    outStream.println(line);
+    return true;
   }
 
   @Override
@@ -261,6 +309,11 @@ public class ExportContainedAnnotationsPR
 	  throw new ExecutionException("Contained Annotation Type Name must be specified");
 	}
     // TODO: more parameter checking!
+    try {
+      OutputFiles.getEncoding(encoding);
+    } catch (IllegalArgumentException ex) {
+      throw new ExecutionException(ex.getMessage());
+    }
 	try {
 	  directoryFile = new File(directoryUrl.toURI());
 	} catch (URISyntaxException ex) {
@@ -35,6 +35,10 @@ package at.ofai.gate.virtualdocuments;
  class ForwardOffsetMapping extends OffsetMapping {
 
     public ForwardOffsetMapping() {
+      this(false);
+    }
+    public ForwardOffsetMapping(boolean compressed) {
+      super(compressed);
       lastSourceOffset = 0;
       currentSourceOffset = 0;
     }
@@ -48,6 +52,9 @@ package at.ofai.gate.virtualdocuments;
         System.err.println("sourceOffset "+sourceOffset+" is smaller than last sourceOffset "+lastSourceOffset);
       }
 
+      // the number of target offsets to skip before the first target offset
+      // of a copied range that is mapped
+      int targetSkip = 0;
       if(sourceOffset < currentSourceOffset) {
         // we have got overlap!
         // if there is a part of the source that does not overlap,
@@ -56,10 +63,14 @@ package at.ofai.gate.virtualdocuments;
         if(sourceOffset+sourceLength > currentSourceOffset) {
           int nonOverlappingLength = sourceOffset+sourceLength-currentSourceOffset;
           // create mappings for the nonoverlapping length, starting at
-          // currentSourceOffset
+          // currentSourceOffset. For a copy, the nonoverlapping part
+          // still corresponds to the end part of the target range, for
+          // anything else the whole target range is used.
+          if(isCopy) {
+            targetSkip = currentSourceOffset - sourceOffset;
+          }
           sourceOffset = currentSourceOffset;
           sourceLength = nonOverlappingLength;
-          isCopy = false; // even if it was true, reset to false since we modified
         } else {
           sourceLength = 0;
         }
@@ -68,31 +79,20 @@ package at.ofai.gate.virtualdocuments;
         // so all the offsets in the gap need to have their from and too
         // mappings set to the current target offset
         int gapLength = sourceOffset - currentSourceOffset;
-        for(int i=0; i<gapLength; i++) {
-          //mapFrom.add(currentSourceOffset+i, currentTargetOffset);
-          addFrom(currentSourceOffset+i,currentTargetOffset);
-          //mapTo.add(currentSourceOffset+i, currentTargetOffset);
-          addTo(currentSourceOffset+i, currentTargetOffset);
-        }
+        fillRange(currentSourceOffset, gapLength,
+                currentTargetOffset, currentTargetOffset);
         // do the actual mapping normally later
         currentSourceOffset += gapLength;
-        isCopy = false;
       }
       // do the mapping: if isCopy is true for each offset individually,
       // otherwise for the whole range
-      for(int i=0; i<sourceLength; i++) {
-        if(isCopy) {
-          //mapFrom.add(currentSourceOffset+i, currentTargetOffset+i);
-          addFrom(currentSourceOffset+i, currentTargetOffset+i);
-          //mapTo.add(currentSourceOffset+i, currentTargetOffset+i+1);
-          addTo(currentSourceOffset+i, currentTargetOffset+i+1);
-        } else {
-          //mapFrom.add(currentSourceOffset+i, currentTargetOffset);
-          addFrom(currentSourceOffset+i, currentTargetOffset);
-          //mapTo.add(currentSourceOffset+i, currentTargetOffset+targetLength);
-          addTo(currentSourceOffset+i, currentTargetOffset+targetLength);
-        }
-      } // for
+      if(isCopy) {
+        fillCopyRange(currentSourceOffset, sourceLength,
+                currentTargetOffset+targetSkip);
+      } else {
+        fillRange(currentSourceOffset, sourceLength,
+                currentTargetOffset, currentTargetOffset+targetLength);
+      }
       // adjust
       lastSourceOffset = currentSourceOffset;
       currentSourceOffset += sourceLength;
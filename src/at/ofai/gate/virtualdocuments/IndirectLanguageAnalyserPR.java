@@ -10,25 +10,46 @@
 
 package at.ofai.gate.virtualdocuments;
 
+import gate.Annotation;
 import gate.Controller;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import gate.Gate;
 import gate.LanguageAnalyser;
+import gate.Resource;
 import gate.corpora.DocumentImpl;
 import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.AbstractResource;
 import gate.creole.ControllerAwarePR;
 import gate.creole.ExecutionException;
+import gate.creole.ResourceData;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
+import gate.util.Files;
 import gate.util.GateRuntimeException;
+import gate.util.OffsetComparator;
 
+import java.io.File;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.naming.InvalidNameException;
 
@@ -91,7 +112,100 @@ public class IndirectLanguageAnalyserPR
 
   @RunTime
   @Optional
-  @CreoleParameter(comment = "(NOT IMPLEMENTED YET!) A list of Annotation set/type names to map to the virtual document (default: none)")
+  @CreoleParameter(comment = "If true, reuse a single virtual document for all documents instead of creating a new one each time (ignored if debug is true)",
+    defaultValue = "false")
+  public void setReuseVirtualDocument(Boolean reuse) {
+    this.reuseVirtualDocument = reuse;
+  }
+  public Boolean getReuseVirtualDocument() {
+    return this.reuseVirtualDocument;
+  }
+  private Boolean reuseVirtualDocument = false;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If true, create lightweight virtual documents which are not registered with GATE, are not parsed for markup and share the features of the original document until they are changed (ignored if debug is true)",
+    defaultValue = "false")
+  public void setLightweightVirtualDocument(Boolean lightweight) {
+    this.lightweightVirtualDocument = lightweight;
+  }
+  public Boolean getLightweightVirtualDocument() {
+    return this.lightweightVirtualDocument;
+  }
+  private Boolean lightweightVirtualDocument = false;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If larger than 1, run that many copies of the language analyser in parallel on the virtual documents of the segments of a document, if segmentAnnotationType is set, or of successive documents, if pipelined is true; a value larger than 1 requires one of these",
+    defaultValue = "1")
+  public void setNumberOfThreads(Integer n) {
+    this.numberOfThreads = n;
+  }
+  public Integer getNumberOfThreads() {
+    return this.numberOfThreads == null ? 1 : this.numberOfThreads;
+  }
+  private Integer numberOfThreads = 1;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If set, create a separate virtual document for each annotation of this type in the input annotation set, e.g. Sentence")
+  public void setSegmentAnnotationType(String type) {
+    this.segmentAnnotationType = type;
+  }
+  public String getSegmentAnnotationType() {
+    return this.segmentAnnotationType;
+  }
+  private String segmentAnnotationType;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If true, run the language analyser on the virtual document and map back its annotations in a separate thread while the next documents are processed; this PR must be the last PR of the controller and the corpus must be transient",
+    defaultValue = "false")
+  public void setPipelined(Boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+  public Boolean getPipelined() {
+    return this.pipelined;
+  }
+  private Boolean pipelined = false;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If larger than 0, keep the annotations created for that many different virtual document texts in memory and map those back instead of running the language analyser again for the same text (not used if mapForwardAnnotations is set)",
+    defaultValue = "0")
+  public void setCacheSize(Integer n) {
+    this.cacheSize = n;
+  }
+  public Integer getCacheSize() {
+    return this.cacheSize == null ? 0 : this.cacheSize;
+  }
+  private Integer cacheSize = 0;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "If set, also cache the annotations created for the virtual documents in files in this directory, so they can be reused by later runs")
+  public void setCacheDirectoryUrl(URL url) {
+    this.cacheDirectoryUrl = url;
+  }
+  public URL getCacheDirectoryUrl() {
+    return this.cacheDirectoryUrl;
+  }
+  private URL cacheDirectoryUrl;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "Any text that becomes part of the cache key; change it whenever the language analyser changes in a way its parameters do not show, e.g. when a grammar or gazetteer file it loads has been edited")
+  public void setCacheVersion(String version) {
+    this.cacheVersion = version;
+  }
+  public String getCacheVersion() {
+    return this.cacheVersion;
+  }
+  private String cacheVersion;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "A list of Annotation set/type names to map to the virtual document, these are not mapped back (default: none)")
   public void setMapForwardAnnotations(List<String> as) {
     this.mapForwardAnnotations = as;
   }
@@ -140,6 +254,28 @@ public class IndirectLanguageAnalyserPR
 
   AnnotatedDocumentTransformer annotatedDocumentTransformer;
 
+  // the virtual document that gets reused if reuseVirtualDocument is true
+  private DocumentImpl scratchDocument;
+
+
+  // if pipelined is true, the pipeline that processes the documents
+  private VirtualDocumentPipeline pipeline;
+
+  // if caching is enabled, the cache and the configuration of the language
+  // analyser which is part of each key
+  private AnalysisResultCache cache;
+  private String analyserConfiguration;
+  private String cacheSettings;
+
+  // if numberOfThreads is larger than 1 or pipelined is true, the executor
+  // that runs the wrapped analysers on the segments or documents and the
+  // pool of analysers that are not currently used
+  private ExecutorService executor;
+  private BlockingQueue<LanguageAnalyser> analyserPool;
+  private List<LanguageAnalyser> analyserDuplicates;
+  // the number of segments or documents in progress after which we wait
+  // for the oldest
+  private int maxInProgress;
 
   @Override
   public void execute() throws ExecutionException {
@@ -154,44 +290,163 @@ public class IndirectLanguageAnalyserPR
       throw new GateRuntimeException("Can only handle DocumentImpl not " + 
     		  document.getClass());
     }
-    String newText = annotatedDocumentTransformer.getStringForDocument(
-            getDocument(), inputAnnotationSetName);
+    if(segmentAnnotationType != null && segmentAnnotationType.length() > 0) {
+      executeSegmented();
+      fireStatusChanged("IndirectLanguageAnalyserPR completed");
+      return;
+    }
+
+    if(pipelined != null && pipelined && corpus != null) {
+      if(pipeline == null) {
+        if(corpus.getLRPersistenceId() != null) {
+          throw new ExecutionException(
+            "pipelined cannot be used with a persistent corpus");
+        }
+        if(executor == null) {
+          startThreads();
+        }
+        pipeline = new VirtualDocumentPipeline(this, executor, maxInProgress);
+      }
+      pipeline.submit(document);
+      fireStatusChanged("IndirectLanguageAnalyserPR completed");
+      return;
+    }
+
+    TransformResult transformResult = transformDocument(document);
+
+    final String cacheKey = getCacheKey(transformResult, document);
+    if(mapBackFromCache(cacheKey, transformResult, document)) {
+      fireStatusChanged("IndirectLanguageAnalyserPR completed");
+      return;
+    }
+
+    boolean reuse = reuseVirtualDocument != null && reuseVirtualDocument && !debug;
+    Document newDoc = createVirtualDocument(
+            document, transformResult.getText(), reuse, false);
+
+    mapForward(transformResult, document, newDoc);
+    int firstNewId = firstNewAnnotationId(newDoc);
+
+    analyse(newDoc);
+
+    addToCache(cacheKey, newDoc, firstNewId);
+    mapBack(transformResult, document, newDoc, firstNewId);
+
+    releaseVirtualDocument(newDoc);
+    fireStatusChanged("IndirectLanguageAnalyserPR completed");
+
+  }
+
+  TransformResult transformDocument(Document original) {
+    return annotatedDocumentTransformer.transform(
+            original, inputAnnotationSetName);
+  }
+
+  void analyse(Document newDoc) throws ExecutionException {
+    analyse(languageAnalyser, newDoc);
+  }
+
+  /**
+   * Run the analyser, the language analyser or one of its duplicates, on
+   * the virtual document.
+   */
+  private static void analyse(LanguageAnalyser analyser, Document newDoc)
+          throws ExecutionException {
+    analyser.setDocument(newDoc);
+    analyser.execute();
+  }
+
+  /**
+   * Create the virtual document for the original document with the given
+   * text. If reuse is true, the scratch document is reused if it exists,
+   * otherwise it is created. If concurrent is true, the original document
+   * may get changed by other PRs while the virtual document is used.
+   */
+  Document createVirtualDocument(Document original, String newText,
+          boolean reuse, boolean concurrent) {
+    if(lightweightVirtualDocument != null && lightweightVirtualDocument &&
+       !debug) {
+      // a lightweight document can only share the features of the
+      // original document if nothing else can change them meanwhile
+      return new LightweightVirtualDocument(original, newText, concurrent);
+    }
     FeatureMap theparms = Factory.newFeatureMap();
-    theparms.put("collectRepositioningInfo", document.getCollectRepositioningInfo());
-    theparms.put("encoding", ((DocumentImpl) document).getEncoding());
-    theparms.put("markupAware", document.getMarkupAware());
-    theparms.put("mimeType", ((DocumentImpl) document).getMimeType());
-    theparms.put("preserveOriginalContent", document.getPreserveOriginalContent());
+    theparms.put("collectRepositioningInfo", original.getCollectRepositioningInfo());
+    theparms.put("encoding", ((DocumentImpl) original).getEncoding());
+    theparms.put("markupAware", original.getMarkupAware());
+    theparms.put("mimeType", ((DocumentImpl) original).getMimeType());
+    theparms.put("preserveOriginalContent", original.getPreserveOriginalContent());
     theparms.put("stringContent", newText);
     FeatureMap thefeats = Factory.newFeatureMap();
-    FeatureMap docfeats = document.getFeatures();
+    FeatureMap docfeats = original.getFeatures();
     thefeats.putAll(docfeats);
 
-    String theName = document.getName();
-    // create a copy of the current document
+    String theName = original.getName();
+    // create a copy of the current document or reuse the one we have
     Document newDoc;
-    try {
-      newDoc = (Document) Factory.createResource(
-              "gate.corpora.DocumentImpl",
-              theparms,
-              thefeats,
-              theName+"_virtual");
-    } catch (ResourceInstantiationException ex) {
-      throw new GateRuntimeException(ex);
+    if(reuse && scratchDocument != null) {
+      newDoc = resetScratchDocument(theparms, thefeats, theName+"_virtual");
+    } else {
+      try {
+        newDoc = (Document) Factory.createResource(
+                "gate.corpora.DocumentImpl",
+                theparms,
+                thefeats,
+                theName+"_virtual");
+      } catch (ResourceInstantiationException ex) {
+        throw new GateRuntimeException(ex);
+      }
+      if(reuse) {
+        scratchDocument = (DocumentImpl)newDoc;
+      }
     }
+    return newDoc;
+  }
 
-    /* no forward annotation mappig yet ...
+  /**
+   * Map the annotations to map forward from the original document to the
+   * virtual document.
+   */
+  void mapForward(TransformResult transformResult,
+          Document original, Document newDoc) {
     if(annotatedDocumentTransformer.getGenerateForwardOffsetMap()) {
       annotatedDocumentTransformer.addForwardMappedAnnotations(
-              document, newDoc,
-              mapBackAnnotations);
+              transformResult, original, newDoc, mapForwardAnnotations);
     }
-    */
+  }
 
-    languageAnalyser.setDocument(newDoc);
-    languageAnalyser.execute();
+  /**
+   * The id the virtual document will give to the next annotation. This is
+   * recorded before the language analyser runs, so that only the
+   * annotations it creates get mapped back, not those mapped forward or
+   * created when the document was initialised.
+   */
+  int firstNewAnnotationId(Document newDoc) {
+    return ((DocumentImpl)newDoc).peakAtNextAnnotationId();
+  }
 
+  /**
+   * Map the annotations with an id of at least firstNewId from the virtual
+   * document back to the original document.
+   */
+  void mapBack(TransformResult transformResult,
+          Document original, Document newDoc, int firstNewId) {
     if(annotatedDocumentTransformer.getGenerateBackwardOffsetMap()) {
+      List<String> effectiveMapFromAnnsetNames = getMapBackSetNames(newDoc);
+      if(debug) {
+        System.out.println("Mapping back from annotation sets: "+effectiveMapFromAnnsetNames);
+      }
+      annotatedDocumentTransformer.addBackMappedAnnotations(
+              transformResult, original, newDoc,
+              effectiveMapFromAnnsetNames, firstNewId);
+    }
+  }
+
+  /**
+   * The annotation set or set.type names to map back from the virtual
+   * document: those in mapBackAnnotations or all sets if that is empty.
+   */
+  List<String> getMapBackSetNames(Document newDoc) {
       // figure out the annotation set names to map back
       List<String> effectiveMapFromAnnsetNames = new ArrayList<String>();
       if(mapBackAnnotations == null || mapBackAnnotations.size() == 0) {
@@ -211,34 +466,363 @@ public class IndirectLanguageAnalyserPR
     		}
     	  }
       }
-      if(debug) {
-        System.out.println("Mapping back from annotation sets: "+effectiveMapFromAnnsetNames);
-      }
-      annotatedDocumentTransformer.addBackMappedAnnotations(
-              document, newDoc,
-              effectiveMapFromAnnsetNames);
+      return effectiveMapFromAnnsetNames;
+  }
+
+  /**
+   * The key for the result of transforming the original document in the
+   * cache or null if there is no cache.
+   */
+  String getCacheKey(TransformResult transformResult, Document original) {
+    if(cache == null) {
+      return null;
     }
+    // the virtual document gets the same mime type as the original
+    return AnalysisResultCache.createKey(
+            analyserConfiguration + "\n" + ((DocumentImpl)original).getMimeType(),
+            transformResult.getText());
+  }
+
+  /**
+   * Get the cached annotations for the key, or null if there are none
+   * or the key is null.
+   */
+  CachedAnnotations getCachedAnnotations(String cacheKey) {
+    if(cacheKey == null) {
+      return null;
+    }
+    return cache.get(cacheKey);
+  }
 
-    if(!debug) {
+  /**
+   * If there are annotations in the cache for the key, map them back to
+   * the original document.
+   *
+   * @return true if annotations were found in the cache
+   */
+  boolean mapBackFromCache(String cacheKey,
+          TransformResult transformResult, Document original) {
+    CachedAnnotations cached = getCachedAnnotations(cacheKey);
+    if(cached == null) {
+      return false;
+    }
+    mapBack(transformResult, original, cached);
+    return true;
+  }
+
+  /**
+   * Map annotations found in the cache back to the original document.
+   */
+  void mapBack(TransformResult transformResult, Document original,
+          CachedAnnotations cached) {
+    annotatedDocumentTransformer.addBackMappedAnnotations(
+            transformResult, original, cached);
+  }
+
+  /**
+   * Store the annotations the language analyser created for the virtual
+   * document in the cache, if cacheKey is not null.
+   */
+  void addToCache(String cacheKey, Document newDoc, int firstNewId) {
+    if(cacheKey != null) {
+      cache.put(cacheKey, CachedAnnotations.create(
+              newDoc, getMapBackSetNames(newDoc), firstNewId));
+    }
+  }
+
+  void releaseVirtualDocument(Document newDoc) {
+    if(newDoc instanceof LightweightVirtualDocument) {
+      newDoc.cleanup();
+    } else if(!debug && newDoc != scratchDocument) {
       Factory.deleteResource(newDoc);
     }
-    fireStatusChanged("IndirectLanguageAnalyserPR completed");
+  }
+
+  /**
+   * Run a free analyser from the pool on the virtual document, waiting
+   * until one is free if necessary.
+   */
+  void analyseWithPool(Document newDoc)
+          throws ExecutionException, InterruptedException {
+    LanguageAnalyser analyser = analyserPool.take();
+    try {
+      analyse(analyser, newDoc);
+      analyser.setDocument(null);
+    } finally {
+      analyserPool.put(analyser);
+    }
+  }
+
+  /**
+   * Process each segment annotation of the document separately: create
+   * a virtual document for just the part of the document covered by the
+   * segment, analyse it and map the annotations back. Segments which
+   * overlap with a previous segment are ignored.
+   * If numberOfThreads is larger than 1, the segments are analysed in
+   * parallel, but everything that accesses the original document is done
+   * in this thread and in segment order. At most a few segments per thread
+   * are in progress at any time, so the memory needed only depends on the
+   * size of the segments, not the size of the document.
+   * All segments have been processed when this returns.
+   */
+  private void executeSegmented() throws ExecutionException {
+    List<Annotation> segments = new ArrayList<Annotation>(
+      document.getAnnotations(inputAnnotationSetName).get(segmentAnnotationType));
+    Collections.sort(segments, new OffsetComparator());
+    boolean parallel = getNumberOfThreads() > 1;
+    boolean reuse = reuseVirtualDocument != null && reuseVirtualDocument &&
+            !debug && !parallel;
+    if(parallel && executor == null) {
+      startThreads();
+    }
+    LinkedList<PendingSegment> pending = new LinkedList<PendingSegment>();
+    // the segments do not overlap and the annotations mapped back for a
+    // segment lie within that segment, so the annotations to transform can
+    // be collected once for the whole document
+    AnnotationSnapshot snapshot = annotatedDocumentTransformer.createSnapshot(
+            document, inputAnnotationSetName);
+    long lastEnd = -1;
+    try {
+      for(Annotation segment : segments) {
+        long from = segment.getStartNode().getOffset();
+        long to = segment.getEndNode().getOffset();
+        if(from < lastEnd) {
+          continue;
+        }
+        lastEnd = to;
+        final TransformResult transformResult =
+          annotatedDocumentTransformer.transform(
+            document, inputAnnotationSetName, from, to, snapshot);
+        final String cacheKey = getCacheKey(transformResult, document);
+        if(!parallel || pending.isEmpty()) {
+          if(mapBackFromCache(cacheKey, transformResult, document)) {
+            continue;
+          }
+        } else {
+          // keep the segment order when mapping back
+          CachedAnnotations cached = getCachedAnnotations(cacheKey);
+          if(cached != null) {
+            pending.add(new PendingSegment(transformResult, cached));
+            continue;
+          }
+        }
+        final Document newDoc = createVirtualDocument(
+            document, transformResult.getText(), reuse, false);
+        mapForward(transformResult, document, newDoc);
+        final int firstNewId = firstNewAnnotationId(newDoc);
+        if(!parallel) {
+          analyse(newDoc);
+          addToCache(cacheKey, newDoc, firstNewId);
+          mapBack(transformResult, document, newDoc, firstNewId);
+          releaseVirtualDocument(newDoc);
+          continue;
+        }
+        Future<?> future = executor.submit(new Callable<Object>() {
+          public Object call() throws Exception {
+            analyseWithPool(newDoc);
+            addToCache(cacheKey, newDoc, firstNewId);
+            return null;
+          }
+        });
+        pending.add(new PendingSegment(transformResult, newDoc,
+                firstNewId, future));
+        // map back the segments which are finished or wait for the
+        // oldest one if there are too many in progress
+        while(!pending.isEmpty() &&
+              (pending.size() > maxInProgress ||
+               pending.getFirst().isDone())) {
+          finishSegment(pending.removeFirst());
+        }
+      }
+      while(!pending.isEmpty()) {
+        finishSegment(pending.removeFirst());
+      }
+    } finally {
+      // only if there was an error: wait for the remaining segments and
+      // get rid of their virtual documents
+      for(PendingSegment p : pending) {
+        if(p.cached != null) {
+          continue;
+        }
+        try {
+          p.future.get();
+        } catch (Exception ex) {
+          // we already have an error to report
+        }
+        releaseVirtualDocument(p.virtualDocument);
+      }
+    }
+  }
+
+  private void finishSegment(PendingSegment p) throws ExecutionException {
+    if(p.cached != null) {
+      mapBack(p.transformResult, document, p.cached);
+      return;
+    }
+    try {
+      p.future.get();
+      mapBack(p.transformResult, document, p.virtualDocument,
+              p.firstNewId);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException(ex);
+    } catch (java.util.concurrent.ExecutionException ex) {
+      throw new ExecutionException("Error processing a virtual document",
+              ex.getCause());
+    } finally {
+      releaseVirtualDocument(p.virtualDocument);
+    }
+  }
+
+  // a segment for which the virtual document is analysed by some thread
+  // or for which the annotations were found in the cache
+  private static class PendingSegment {
+    TransformResult transformResult;
+    Document virtualDocument;
+    int firstNewId;
+    Future<?> future;
+    CachedAnnotations cached;
+    PendingSegment(TransformResult transformResult, CachedAnnotations cached) {
+      this.transformResult = transformResult;
+      this.cached = cached;
+    }
+    boolean isDone() {
+      return cached != null || future.isDone();
+    }
+    PendingSegment(TransformResult transformResult, Document virtualDocument,
+            int firstNewId, Future<?> future) {
+      this.transformResult = transformResult;
+      this.virtualDocument = virtualDocument;
+      this.firstNewId = firstNewId;
+      this.future = future;
+    }
+  }
+
+  private void startThreads() throws ExecutionException {
+    int n = getNumberOfThreads();
+    analyserPool = new ArrayBlockingQueue<LanguageAnalyser>(n);
+    analyserDuplicates = new ArrayList<LanguageAnalyser>();
+    analyserPool.add(languageAnalyser);
+    try {
+      for(int i = 1; i < n; i++) {
+        LanguageAnalyser duplicate =
+                (LanguageAnalyser)Factory.duplicate(languageAnalyser);
+        analyserDuplicates.add(duplicate);
+        analyserPool.add(duplicate);
+      }
+    } catch (ResourceInstantiationException ex) {
+      stopThreads();
+      throw new ExecutionException(ex);
+    }
+    maxInProgress = 2*n;
+    executor = Executors.newFixedThreadPool(n);
+  }
 
+  /**
+   * Stop the threads and delete the duplicated analysers. All segments
+   * have been processed when executeSegmented returns and the pipeline is
+   * finished or aborted before this is called, so there is nothing to wait
+   * for.
+   */
+  private void stopThreads() {
+    if(executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+    if(analyserDuplicates != null) {
+      for(LanguageAnalyser duplicate : analyserDuplicates) {
+        Factory.deleteResource(duplicate);
+      }
+      analyserDuplicates = null;
+    }
+    analyserPool = null;
+  }
+
+  /**
+   * Make the scratch document look like a newly created virtual document:
+   * remove all annotations and features of the previous document and
+   * initialize it again with the new parameters. Re-running init() sets the
+   * content and unpacks the markup just like for a new document, but avoids
+   * the overhead of creating and registering a new resource.
+   */
+  private Document resetScratchDocument(FeatureMap theparms, FeatureMap thefeats,
+          String name) {
+    DocumentImpl doc = scratchDocument;
+    doc.getAnnotations().clear();
+    for(String setName : new ArrayList<String>(doc.getAnnotationSetNames())) {
+      doc.removeAnnotationSet(setName);
+    }
+    doc.setNextAnnotationId(0);
+    doc.getFeatures().clear();
+    doc.getFeatures().putAll(thefeats);
+    doc.setName(name);
+    doc.setCollectRepositioningInfo((Boolean)theparms.get("collectRepositioningInfo"));
+    doc.setEncoding((String)theparms.get("encoding"));
+    doc.setMarkupAware((Boolean)theparms.get("markupAware"));
+    doc.setMimeType((String)theparms.get("mimeType"));
+    doc.setPreserveOriginalContent((Boolean)theparms.get("preserveOriginalContent"));
+    doc.setStringContent((String)theparms.get("stringContent"));
+    try {
+      doc.init();
+    } catch (ResourceInstantiationException ex) {
+      throw new GateRuntimeException(ex);
+    }
+    return doc;
+  }
+
+  private void deleteScratchDocument() {
+    if(scratchDocument != null) {
+      Factory.deleteResource(scratchDocument);
+      scratchDocument = null;
+    }
+  }
+
+  @Override
+  public void cleanup() {
+    if(pipeline != null) {
+      pipeline.abort();
+      pipeline = null;
+    }
+    deleteScratchDocument();
+    stopThreads();
+    super.cleanup();
   }
 
 @Override
 public void controllerExecutionAborted(Controller arg0, Throwable arg1)
 		throws ExecutionException {
+  if(pipeline != null) {
+    pipeline.abort();
+    pipeline = null;
+  }
+  deleteScratchDocument();
+  stopThreads();
 }
 
 @Override
 public void controllerExecutionFinished(Controller arg0)
 		throws ExecutionException {
+  deleteScratchDocument();
+  if(pipeline != null) {
+    VirtualDocumentPipeline p = pipeline;
+    pipeline = null;
+    p.finish();
+  }
+  stopThreads();
 }
 
 @Override
 public void controllerExecutionStarted(Controller arg0)
 		throws ExecutionException {
+  // in pipelined mode the annotations of a document are mapped back after
+  // execute() has returned, so no later PR may depend on them
+  if(pipelined != null && pipelined && arg0 != null) {
+    List<?> prs = new ArrayList<Object>(arg0.getPRs());
+    if(prs.isEmpty() || prs.get(prs.size()-1) != this) {
+      throw new ExecutionException(
+        "pipelined can only be used if this is the last PR of the controller");
+    }
+  }
   startup();
 }
 
@@ -247,21 +831,117 @@ public void startup() throws ExecutionException {
         throw new ExecutionException("SrouceSpecifications must not be empty");
       }
       try {
+        // we always map back, but only need the forward map if there are
+        // annotations to map forward
+        boolean mapForward = mapForwardAnnotations != null &&
+                mapForwardAnnotations.size() > 0;
         annotatedDocumentTransformer =
                 new AnnotatedDocumentTransformer(
                 getAnnotationSpecifications(), getProcessingOptions(),
-                false,true);
-        // For now we explicitly define that we do the backward mapping but 
-        // not the forward mapping.
-        // TODO: Once we do optional forward mapping of annotations we have to make
-        // this dependent on whether we map forward annotations.
+                mapForward,true);
+        annotatedDocumentTransformer.setCompressOffsetMaps(true);
       } catch (InvalidNameException ex) {
         throw new ExecutionException(ex);
       }
       if(languageAnalyser == null) {
         throw new ExecutionException("Language Analyser PR not set!");
       }
+      // without segments or the pipeline there is only one virtual document
+      // at a time, so more threads would silently not be used
+      boolean segmented = segmentAnnotationType != null &&
+              segmentAnnotationType.length() > 0;
+      boolean pipelining = pipelined != null && pipelined && corpus != null;
+      if(getNumberOfThreads() > 1 && !segmented && !pipelining) {
+        throw new ExecutionException(
+          "numberOfThreads larger than 1 requires segmentAnnotationType or pipelined");
+      }
+      startCache();
 	
 }
+
+/**
+ * Create the cache if caching is enabled. The cache is kept as long as the
+ * cache size and directory do not change, since the configuration of the
+ * language analyser is part of the key.
+ */
+private void startCache() throws ExecutionException {
+  boolean mapForward = mapForwardAnnotations != null &&
+          mapForwardAnnotations.size() > 0;
+  if(mapForward || (getCacheSize() <= 0 && cacheDirectoryUrl == null)) {
+    cache = null;
+    cacheSettings = null;
+    return;
+  }
+  analyserConfiguration = getAnalyserConfiguration();
+  String settings = getCacheSize() + " " + cacheDirectoryUrl;
+  if(cache == null || !settings.equals(cacheSettings)) {
+    File directory = null;
+    if(cacheDirectoryUrl != null) {
+      directory = Files.fileFromURL(cacheDirectoryUrl);
+    }
+    cache = new AnalysisResultCache(getCacheSize(), directory);
+    cacheSettings = settings;
+  }
+}
+
+/**
+ * A description of the language analyser, cacheVersion and
+ * mapBackAnnotations.
+ */
+private String getAnalyserConfiguration() throws ExecutionException {
+  return describeResource(languageAnalyser, new HashSet<Resource>()) +
+          " " + cacheVersion + " " + mapBackAnnotations;
+}
+
+/**
+ * A description of the resource: its class and the values of its init and
+ * runtime parameters, except document and corpus, and for a controller its
+ * PRs. Parameter values which are resources are described the same way, so
+ * changing a parameter of a PR in a nested controller changes the
+ * description. A resource which has already been described is only
+ * described by its class.
+ */
+private static String describeResource(Resource resource, Set<Resource> seen)
+        throws ExecutionException {
+  if(!seen.add(resource)) {
+    return resource.getClass().getName();
+  }
+  Map<String,String> values = new TreeMap<String,String>();
+  try {
+    ResourceData rd =
+      Gate.getCreoleRegister().get(resource.getClass().getName());
+    FeatureMap parms = AbstractResource.getInitParameterValues(resource);
+    if(rd != null) {
+      parms.putAll(AbstractResource.getParameterValues(resource,
+              rd.getParameterList().getRuntimeParameters()));
+    }
+    for(Object key : parms.keySet()) {
+      if(!"document".equals(key) && !"corpus".equals(key)) {
+        values.put(String.valueOf(key), describeValue(parms.get(key), seen));
+      }
+    }
+  } catch (ResourceInstantiationException ex) {
+    throw new ExecutionException(ex);
+  }
+  String description = resource.getClass().getName() + " " + values;
+  if(resource instanceof Controller) {
+    description += " " + describeValue(((Controller)resource).getPRs(), seen);
+  }
+  return description;
+}
+
+private static String describeValue(Object value, Set<Resource> seen)
+        throws ExecutionException {
+  if(value instanceof Resource) {
+    return describeResource((Resource)value, seen);
+  } else if(value instanceof Collection) {
+    List<String> descriptions = new ArrayList<String>();
+    for(Object element : (Collection<?>)value) {
+      descriptions.add(describeValue(element, seen));
+    }
+    return descriptions.toString();
+  }
+  return String.valueOf(value);
+}
   
 }
@@ -0,0 +1,58 @@
+/*
+ *  LightweightVirtualDocument.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.corpora.DocumentContentImpl;
+import gate.corpora.DocumentImpl;
+
+/**
+ * A virtual document that is created directly instead of through
+ * Factory.createResource: it is not registered with the CREOLE register,
+ * no resource events are fired for it and its text is not parsed for
+ * markup, so creating it costs little more than creating its content.
+ * <p>
+ * The features of the document are a copy-on-write view of the features of
+ * the original document or a copy of them.
+ * A lightweight document must not be deleted with Factory.deleteResource,
+ * use {@link #cleanup()} when it is not needed any more.
+ *
+ * @author Johann Petrak
+ */
+class LightweightVirtualDocument extends DocumentImpl {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Create a document with the text for the original document. If
+   * copyFeatures is false, the features are a view of the features of the
+   * original document, which must then not be changed while this document
+   * is used.
+   */
+  LightweightVirtualDocument(Document original, String text,
+          boolean copyFeatures) {
+    setName(original.getName() + "_virtual");
+    setContent(new DocumentContentImpl(text));
+    setStringContent(text);
+    setMarkupAware(false);
+    setMimeType("text/plain");
+    FeatureMap features;
+    if(copyFeatures) {
+      features = Factory.newFeatureMap();
+      features.putAll(original.getFeatures());
+    } else {
+      features = new CopyOnWriteFeatureMap(original.getFeatures());
+    }
+    setFeatures(features);
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ *  MapBackAnnotationsPR.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Controller;
+import gate.Corpus;
+import gate.Document;
+import gate.LanguageAnalyser;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import gate.persist.PersistenceException;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This PR maps annotations from virtual documents that were annotated
+ * elsewhere back to their original documents, without creating the virtual
+ * documents again.
+ * <p>
+ * The PR processes the corpus of the annotated virtual documents. The map
+ * from the offsets of a virtual document to those of its original document
+ * is taken from the document feature {@link StoredOffsetMapping#FEATURE_NAME}
+ * or, if a directory is given, from the .vmap file for the document in that
+ * directory, as written by the {@link CopyVirtualDocumentPR} when its
+ * storeOffsetMapping parameter is true. The original document is looked up
+ * by name in the original corpus and the annotations of the given sets and
+ * types are added to it, all annotations of a set in one pass over the
+ * offset map.
+ *
+ * @author Johann Petrak
+ */
+@CreoleResource(name = "Map Back Annotations PR",
+        comment = "Map annotations from annotated virtual documents back to the original documents")
+public class MapBackAnnotationsPR
+  extends AbstractLanguageAnalyser
+  implements LanguageAnalyser, ControllerAwarePR
+{
+  private static final long serialVersionUID = 1L;
+
+  @RunTime
+  @CreoleParameter(comment = "The corpus that contains the original documents")
+  public void setOriginalCorpus(Corpus corpus) {
+    this.originalCorpus = corpus;
+  }
+  public Corpus getOriginalCorpus() {
+    return originalCorpus;
+  }
+  private Corpus originalCorpus;
+
+  @RunTime
+  @CreoleParameter(comment = "A list of Annotation Sets/Types to map back to the original document; use set[.type] format")
+  public void setAnnotationSetNames(List<String> as) {
+    this.annotationSetNames = as;
+  }
+  public List<String> getAnnotationSetNames() {
+    return annotationSetNames;
+  }
+  private List<String> annotationSetNames;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(comment = "URL of the directory with the .vmap files of the virtual documents (default: use the document feature)")
+  public void setOffsetMappingDirectoryUrl(URL url) {
+    this.offsetMappingDirectoryUrl = url;
+  }
+  public URL getOffsetMappingDirectoryUrl() {
+    return offsetMappingDirectoryUrl;
+  }
+  private URL offsetMappingDirectoryUrl;
+
+  private File offsetMappingDirectory;
+
+  // the index of each document in the original corpus by name
+  private Map<String,Integer> originalIndex;
+  private Corpus indexedCorpus;
+
+  @Override
+  public void execute() throws ExecutionException {
+    fireStatusChanged("MapBackAnnotationsPR processing: "
+            + getDocument().getName());
+    if(originalCorpus == null) {
+      throw new ExecutionException("No original corpus");
+    }
+    StoredOffsetMapping stored = getStoredMapping(document);
+    OffsetMapping mapping = stored.getMapping();
+    if(mapping.size() != document.getContent().size()) {
+      throw new ExecutionException("The offset mapping for document "+
+        document.getName()+" is for a text of length "+mapping.size()+
+        " but the document has length "+document.getContent().size());
+    }
+    Integer index = getOriginalIndex().get(stored.getDocumentName());
+    if(index == null) {
+      throw new ExecutionException("Original document "+
+        stored.getDocumentName()+" for "+document.getName()+
+        " not found in the original corpus");
+    }
+    boolean wasLoaded = originalCorpus.isDocumentLoaded(index);
+    Document originalDoc = originalCorpus.get(index);
+    AnnotatedDocumentTransformer.addBackMappedAnnotations(mapping,
+            originalDoc, document, annotationSetNames, 0);
+    if(originalCorpus.getLRPersistenceId() != null) {
+      try {
+        originalDoc.sync();
+      } catch (PersistenceException ex) {
+        throw new ExecutionException("Could not save document "+
+          originalDoc.getName(), ex);
+      }
+      if(!wasLoaded) {
+        originalCorpus.unloadDocument(originalDoc);
+      }
+    }
+    fireStatusChanged("MapBackAnnotationsPR completed");
+  }
+
+  /**
+   * Get the stored offset mapping for the virtual document from the
+   * directory, if one is given, or from the document feature.
+   */
+  protected StoredOffsetMapping getStoredMapping(Document doc)
+          throws ExecutionException {
+    if(offsetMappingDirectory != null) {
+      File file = findMappingFile(doc);
+      if(file == null) {
+        throw new ExecutionException("No offset mapping file for document "+
+          doc.getName()+" in "+offsetMappingDirectory);
+      }
+      InputStream in = null;
+      try {
+        in = new BufferedInputStream(new FileInputStream(file));
+        if(file.getName().endsWith(".gz")) {
+          in = new GZIPInputStream(in);
+        }
+        return StoredOffsetMapping.read(in);
+      } catch (IOException ex) {
+        throw new ExecutionException("Could not read "+file, ex);
+      } finally {
+        if(in != null) {
+          try {
+            in.close();
+          } catch (IOException ex) {
+            // we already have what we need
+          }
+        }
+      }
+    }
+    StoredOffsetMapping stored;
+    try {
+      stored = StoredOffsetMapping.getFromFeature(doc);
+    } catch (IllegalArgumentException ex) {
+      throw new ExecutionException("Invalid offset mapping for document "+
+        doc.getName(), ex);
+    }
+    if(stored == null) {
+      throw new ExecutionException("No offset mapping for document "+
+        doc.getName());
+    }
+    return stored;
+  }
+
+  // The mapping file is named after the virtual document it was written
+  // with. When the virtual document was loaded from a file, GATE gives it
+  // a different name, so also try the name of that file without its
+  // extensions.
+  private File findMappingFile(Document doc) {
+    String[] names;
+    URL sourceUrl = doc.getSourceUrl();
+    if(sourceUrl != null) {
+      String fileName = new File(sourceUrl.getPath()).getName();
+      if(fileName.endsWith(".gz")) {
+        fileName = fileName.substring(0, fileName.length()-3);
+      }
+      int dot = fileName.lastIndexOf('.');
+      if(dot > 0) {
+        fileName = fileName.substring(0, dot);
+      }
+      names = new String[] { doc.getName(), fileName };
+    } else {
+      names = new String[] { doc.getName() };
+    }
+    for(String name : names) {
+      for(String suffix : new String[] { "", ".gz" }) {
+        File file = new File(offsetMappingDirectory,
+                name+StoredOffsetMapping.EXTENSION+suffix);
+        if(file.exists()) {
+          return file;
+        }
+      }
+    }
+    return null;
+  }
+
+  private Map<String,Integer> getOriginalIndex() {
+    if(originalIndex == null || indexedCorpus != originalCorpus ||
+       originalIndex.size() != originalCorpus.size()) {
+      originalIndex = new HashMap<String,Integer>();
+      List<String> names = originalCorpus.getDocumentNames();
+      for(int i = 0; i < names.size(); i++) {
+        originalIndex.put(names.get(i), i);
+      }
+      indexedCorpus = originalCorpus;
+    }
+    return originalIndex;
+  }
+
+  @Override
+  public void controllerExecutionAborted(Controller arg0, Throwable arg1)
+  		throws ExecutionException {
+    originalIndex = null;
+  }
+
+  @Override
+  public void controllerExecutionFinished(Controller arg0)
+  		throws ExecutionException {
+    originalIndex = null;
+  }
+
+  @Override
+  public void controllerExecutionStarted(Controller arg0)
+  		throws ExecutionException {
+    startup();
+  }
+
+  public void startup() throws ExecutionException {
+    originalIndex = null;
+    offsetMappingDirectory = null;
+    if(offsetMappingDirectoryUrl != null) {
+      try {
+        offsetMappingDirectory = new File(offsetMappingDirectoryUrl.toURI());
+      } catch (URISyntaxException ex) {
+        throw new ExecutionException(ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ *  OffsetMapStore.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The storage used by an {@link OffsetMapping} for the from and to offsets
+ * of each mapped offset. Ranges of offsets are always added in increasing
+ * offset order, either as ranges where every offset maps to the same from
+ * and to offsets or as copies where every offset maps to its own
+ * one character range.
+ * <p>
+ * Adding a range that starts at an offset which is already mapped, or
+ * after a gap, is not an error for any store: the range overwrites the
+ * existing mappings, a gap is filled with the from and to offsets of the
+ * range, and a warning is logged.
+ *
+ * @author Johann Petrak
+ */
+abstract class OffsetMapStore {
+
+  protected static final Logger logger = Logger.getLogger(OffsetMapStore.class);
+
+  /**
+   * The number of offsets for which a mapping exists.
+   */
+  abstract int size();
+
+  abstract int getFrom(int offset);
+
+  abstract int getTo(int offset);
+
+  /**
+   * Map each of the length offsets starting at pos to the same from
+   * and to offsets.
+   */
+  abstract void fillRange(int pos, int length, int from, int to);
+
+  /**
+   * Map each of the length offsets starting at pos to its own
+   * offset in a copy that starts at from.
+   */
+  abstract void fillCopyRange(int pos, int length, int from);
+
+  /**
+   * Release any memory that was reserved for adding more offsets.
+   */
+  abstract void trimToSize();
+
+  /**
+   * For each of the first n ranges, set newStarts[i] to getFrom(starts[i])
+   * and newEnds[i] to getTo(max(ends[i]-1,0)). The start offsets must be in
+   * increasing order.
+   */
+  void mapRanges(int[] starts, int[] ends, int n,
+          int[] newStarts, int[] newEnds) {
+    for(int i = 0; i < n; i++) {
+      newStarts[i] = getFrom(starts[i]);
+      newEnds[i] = getTo(Math.max(ends[i]-1, 0));
+    }
+  }
+
+  protected void checkIndex(int offset) {
+    if(offset < 0 || offset >= size()) {
+      throw new IndexOutOfBoundsException("Index: "+offset+", Size: "+size());
+    }
+  }
+}
@@ -11,8 +11,9 @@
 package at.ofai.gate.virtualdocuments;
 
 import gate.util.GateRuntimeException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
   /**
    * This class provides a mapping between ranges of text within
@@ -26,8 +27,8 @@ import java.util.List;
    *
    */
   public abstract class OffsetMapping {
-    protected List<Integer> mapFrom = new ArrayList<Integer>();
-    protected List<Integer> mapTo = new ArrayList<Integer>();
+    // The from and to offsets for each offset that has been mapped so far.
+    protected OffsetMapStore store;
 
     // this keeps the source offset of the last mapping the addMapping
     // method was processing so we can see if the current mapping overlaps
@@ -40,9 +41,35 @@ import java.util.List;
     // to the target length.
     protected int currentTargetOffset = 0;
 
+    // once frozen, no more mappings can be added
+    private volatile boolean frozen = false;
+
+    /**
+     * Create a mapping that stores the from and to offsets for every
+     * mapped offset.
+     */
+    protected OffsetMapping() {
+      this(false);
+    }
+
+    /**
+     * Create a mapping that stores the from and to offsets for every mapped
+     * offset if compressed is false, or one that only stores the ranges
+     * added with addMapping if compressed is true. A compressed mapping
+     * needs memory proportional to the number of mapped ranges instead of
+     * the document length, but each lookup needs a binary search.
+     */
+    protected OffsetMapping(boolean compressed) {
+      if(compressed) {
+        store = new SegmentOffsetMapStore();
+      } else {
+        store = new ArrayOffsetMapStore();
+      }
+    }
+
     @Override
     public String toString() {
-      return "Mapping:"+mapFrom.size()+"/"+mapTo.size();
+      return "Mapping:"+size()+"/"+size();
     }
 
     public abstract void addMapping(
@@ -50,51 +77,254 @@ import java.util.List;
             int sourceLength, int targetLength,
             boolean isCopy);
 
+    /**
+     * The number of offsets for which a mapping exists.
+     */
+    public int size() {
+      return store.size();
+    }
+
+    /**
+     * True if this mapping only stores the mapped ranges.
+     */
+    public boolean isCompressed() {
+      return store instanceof SegmentOffsetMapStore;
+    }
+
     public int getFrom(int offset) {
-      return mapFrom.get(offset);
+      return store.getFrom(offset);
     }
     public Long getFromLong(Long offset) {
-      return new Long(mapFrom.get(offset.intValue()));
+      return Long.valueOf(getFrom(offset.intValue()));
     }
 
     public int getTo(int offset) {
-      return mapTo.get(offset);
+      return store.getTo(offset);
     }
     public Long getToLong(Long offset) {
-      return new Long(mapTo.get(offset.intValue()));
+      return Long.valueOf(getTo(offset.intValue()));
+    }
+
+    /**
+     * Map n ranges at once: for each i, newStarts[i] is set to the from
+     * offset of starts[i] and newEnds[i] to the to offset of the last offset
+     * in the range, ends[i]-1 (or 0 for an empty range at offset 0).
+     * The start offsets must be in increasing order, so a compressed mapping
+     * can find all of them in a single sweep over its ranges.
+     */
+    public void mapRanges(int[] starts, int[] ends, int n,
+            int[] newStarts, int[] newEnds) {
+      store.mapRanges(starts, ends, n, newStarts, newEnds);
+    }
+
+    /**
+     * Prevent any further mappings from being added. After this, the
+     * mapping can be safely used from several threads.
+     */
+    void freeze() {
+      if(!frozen) {
+        store.trimToSize();
+        frozen = true;
+      }
+    }
+
+    public boolean isFrozen() {
+      return frozen;
+    }
+
+    /**
+     * Map each of the length offsets starting at pos to the same from
+     * and to offsets.
+     */
+    protected void fillRange(int pos, int length, int from, int to) {
+      checkNotFrozen();
+      store.fillRange(pos, length, from, to);
     }
 
-    public void addFrom(int pos, int what) {
-      addToMap(mapFrom, pos, what);
+    /**
+     * Map each of the length offsets starting at pos to its own
+     * offset in a copy that starts at from.
+     */
+    protected void fillCopyRange(int pos, int length, int from) {
+      checkNotFrozen();
+      store.fillCopyRange(pos, length, from);
     }
 
-    public void addTo(int pos, int what) {
-      addToMap(mapTo, pos, what);
+    /**
+     * The segments of this mapping: the store itself for a compressed
+     * mapping, otherwise they are created from the mapped offsets.
+     */
+    SegmentOffsetMapStore getSegments() {
+      return SegmentOffsetMapStore.segmentsOf(store);
     }
 
-    private void addToMap(List<Integer> map, int pos, int what) {
-      // this makes sure we cannot get a index out of bounds exception
-      // - if the index pos is already part of the vector, we show a warning
-      // - if the index pos is exactly one more than the current last index
-      //   silently do it
-      // - if the index pos is larger than one more than the current index,
-      //   insert the missing elements and show a warning
-      int size = map.size();
-      if(pos < 0) {
-        throw new GateRuntimeException("Trying to set map element at index "+pos);
+    // the kinds of mappings in the binary form
+    private static final int FORWARD = 0;
+    private static final int BACKWARD = 1;
+
+    /**
+     * Write the mapping in binary form: the segments of the mapping, with
+     * the offsets stored as differences to the previous segment in as few
+     * bytes as needed. The size of the result grows with the number of
+     * mapped ranges, not with the length of the document.
+     */
+    void writeTo(DataOutput out) throws IOException {
+      SegmentOffsetMapStore segments = getSegments();
+      out.writeByte(this instanceof ForwardOffsetMapping ? FORWARD : BACKWARD);
+      int nrSegments = segments.getNrSegments();
+      BinaryValues.writeVarInt(out, segments.size());
+      BinaryValues.writeVarInt(out, nrSegments);
+      int lastStart = 0;
+      int lastFrom = 0;
+      for(int seg = 0; seg < nrSegments; seg++) {
+        int start = segments.getSegmentStart(seg);
+        int from = segments.getSegmentFrom(seg);
+        BinaryValues.writeVarInt(out, start - lastStart);
+        BinaryValues.writeSignedVarInt(out, from - lastFrom);
+        // 0 for a copy segment, otherwise the length of the range plus one
+        if(segments.isCopySegment(seg)) {
+          BinaryValues.writeVarInt(out, 0);
+        } else {
+          BinaryValues.writeVarInt(out, segments.getSegmentTo(seg) - from + 1);
+        }
+        lastStart = start;
+        lastFrom = from;
+      }
+    }
+
+    /**
+     * Read a mapping written by {@link #writeTo(DataOutput)}. The mapping
+     * is compressed and frozen.
+     */
+    static OffsetMapping readFrom(DataInput in) throws IOException {
+      int kind = in.readByte();
+      OffsetMapping mapping;
+      if(kind == FORWARD) {
+        mapping = new ForwardOffsetMapping(true);
+      } else if(kind == BACKWARD) {
+        mapping = new BackwardOffsetMapping(true);
+      } else {
+        throw new IOException("Invalid offset mapping kind: "+kind);
       }
-      if(pos == size) {
-        map.add(pos,what);
-      } else if(pos < size) {
-        System.err.println("Trying to set map element that exists: "+pos+" size is "+size);
-        map.set(pos, what);
-      } else if(pos > size) {
-        System.err.println("Trying to set map element after gap: "+pos+" size is "+size);
-        for(int i = size; i <= pos; i++) {
-          map.add(i,what);
+      int size = BinaryValues.readVarInt(in);
+      int nrSegments = BinaryValues.readVarInt(in);
+      int[] starts = new int[nrSegments+1];
+      int[] froms = new int[nrSegments];
+      int[] lengths = new int[nrSegments];
+      int start = 0;
+      int from = 0;
+      for(int seg = 0; seg < nrSegments; seg++) {
+        start += BinaryValues.readVarInt(in);
+        from += BinaryValues.readSignedVarInt(in);
+        starts[seg] = start;
+        froms[seg] = from;
+        lengths[seg] = BinaryValues.readVarInt(in) - 1;
+      }
+      starts[nrSegments] = size;
+      mapping.addSegments(starts, froms, lengths, nrSegments);
+      mapping.freeze();
+      return mapping;
+    }
+
+    /**
+     * Add n segments: segment i maps the offsets from starts[i] up to
+     * starts[i+1] to copies starting at froms[i] if lengths[i] is negative,
+     * otherwise to the range froms[i] .. froms[i]+lengths[i].
+     */
+    void addSegments(int[] starts, int[] froms, int[] lengths, int n) {
+      for(int seg = 0; seg < n; seg++) {
+        int length = starts[seg+1] - starts[seg];
+        if(lengths[seg] < 0) {
+          fillCopyRange(starts[seg], length, froms[seg]);
+        } else {
+          fillRange(starts[seg], length, froms[seg], froms[seg]+lengths[seg]);
         }
       }
     }
 
-  }
+    /**
+     * Compose two mappings into one that maps directly from the source of
+     * first to the target of second, where the target of first is the
+     * source of second: for a chain of virtual documents, first is the
+     * backward map of the innermost virtual document and second the
+     * backward map of the virtual document it was created from.
+     * A range mapped with the result is the same as the range mapped with
+     * first and then with second. Offsets of first that map to an empty
+     * range, e.g. a separator inserted into the intermediate text, map to
+     * an empty range where that range starts, and offsets that map past the
+     * end of second map to the end of the last range of second.
+     * <p>
+     * The result is computed from the segments of both mappings, so for
+     * compressed mappings the time needed grows with the number of mapped
+     * ranges, not with the length of the documents. The result is a
+     * compressed and frozen mapping of the same kind as the two mappings.
+     */
+    public static OffsetMapping compose(OffsetMapping first, OffsetMapping second) {
+      OffsetMapping result;
+      if(first instanceof BackwardOffsetMapping &&
+         second instanceof BackwardOffsetMapping) {
+        result = new BackwardOffsetMapping(true);
+      } else if(first instanceof ForwardOffsetMapping &&
+                second instanceof ForwardOffsetMapping) {
+        result = new ForwardOffsetMapping(true);
+      } else {
+        throw new GateRuntimeException("Cannot compose a "+
+          first.getClass().getSimpleName()+" with a "+
+          second.getClass().getSimpleName());
+      }
+      SegmentOffsetMapStore inner = first.getSegments();
+      SegmentOffsetMapStore outer = second.getSegments();
+      int outerSize = outer.size();
+      // where offsets past the end of the second mapping map to
+      int end = outerSize > 0 ? outer.getTo(outerSize-1) : 0;
+      for(int seg = 0; seg < inner.getNrSegments(); seg++) {
+        int pos = inner.getSegmentStart(seg);
+        int length = inner.getSegmentEnd(seg) - pos;
+        int from = inner.getSegmentFrom(seg);
+        if(!inner.isCopySegment(seg)) {
+          // all offsets map to the same range of the intermediate text,
+          // so they all map to the same range of the final text
+          int newFrom = from < outerSize ? outer.getFrom(from) : end;
+          int to = inner.getSegmentTo(seg)-1;
+          int newTo;
+          if(to < from) {
+            newTo = newFrom;
+          } else {
+            newTo = to < outerSize ? outer.getTo(to) : end;
+          }
+          result.fillRange(pos, length, newFrom, newTo);
+          continue;
+        }
+        // a copied range: each part of it gets mapped like the part of the
+        // intermediate text it is a copy of
+        int outerSeg = from < outerSize ? outer.findSegment(from) : -1;
+        while(length > 0) {
+          if(outerSeg < 0 || outerSeg >= outer.getNrSegments()) {
+            result.fillRange(pos, length, end, end);
+            break;
+          }
+          int partLength =
+                  Math.min(length, outer.getSegmentEnd(outerSeg) - from);
+          if(outer.isCopySegment(outerSeg)) {
+            result.fillCopyRange(pos, partLength, outer.getFrom(outerSeg, from));
+          } else {
+            result.fillRange(pos, partLength, outer.getSegmentFrom(outerSeg),
+                    outer.getSegmentTo(outerSeg));
+          }
+          pos += partLength;
+          from += partLength;
+          length -= partLength;
+          outerSeg++;
+        }
+      }
+      result.freeze();
+      return result;
+    }
 
+    private void checkNotFrozen() {
+      if(frozen) {
+        throw new GateRuntimeException("Cannot add mappings to a frozen offset mapping");
+      }
+    }
+
+  }
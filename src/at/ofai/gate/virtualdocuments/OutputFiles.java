@@ -0,0 +1,127 @@
+/*
+ *  OutputFiles.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens the files written by the PRs of this plugin.
+ * <p>
+ * The files are written through the FileChannel of the file with a large
+ * buffer, so even many small writes end up as few large writes to the file
+ * system, which matters most for network file systems. The files can be
+ * compressed with gzip, in which case ".gz" gets appended to the file name
+ * by {@link #getFile(File, String, boolean)}.
+ *
+ * @author Johann Petrak
+ */
+final class OutputFiles {
+
+  private OutputFiles() {
+  }
+
+  /**
+   * The size of the buffer for the bytes written to the file.
+   */
+  static final int BUFFER_SIZE = 256*1024;
+
+  /**
+   * The default encoding of files written by the PRs.
+   */
+  static final String DEFAULT_ENCODING = "UTF-8";
+
+  /**
+   * The file with the given name in the directory, with ".gz" appended to
+   * the name if it gets compressed.
+   */
+  static File getFile(File directory, String name, boolean compress) {
+    return new File(directory, compress ? name + ".gz" : name);
+  }
+
+  /**
+   * Return the encoding to use for an encoding parameter, the default
+   * encoding if the parameter is null or empty.
+   *
+   * @throws IllegalArgumentException if the encoding is not supported
+   */
+  static String getEncoding(String encoding) {
+    if(encoding == null || encoding.trim().isEmpty()) {
+      return DEFAULT_ENCODING;
+    }
+    encoding = encoding.trim();
+    if(!Charset.isSupported(encoding)) {
+      throw new IllegalArgumentException("Encoding not supported: "+encoding);
+    }
+    return encoding;
+  }
+
+  /**
+   * Open a buffered output stream for the file, which gets compressed with
+   * gzip if compress is true.
+   */
+  static OutputStream openOutputStream(File file, boolean compress)
+          throws IOException {
+    FileChannel channel = new FileOutputStream(file).getChannel();
+    OutputStream out = new BufferedOutputStream(
+            Channels.newOutputStream(channel), BUFFER_SIZE);
+    if(compress) {
+      try {
+        out = new GZIPOutputStream(out, BUFFER_SIZE/4);
+      } catch (IOException ex) {
+        out.close();
+        throw ex;
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Open a buffered writer for the file which writes in the given encoding.
+   */
+  static Writer openWriter(File file, String encoding, boolean compress)
+          throws IOException {
+    OutputStream out = openOutputStream(file, compress);
+    try {
+      return new BufferedWriter(new OutputStreamWriter(out, encoding),
+              BUFFER_SIZE/16);
+    } catch (IOException ex) {
+      out.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Open a print stream without automatic flushing for the file which
+   * writes in the given encoding.
+   */
+  static PrintStream openPrintStream(File file, String encoding,
+          boolean compress) throws IOException {
+    OutputStream out = openOutputStream(file, compress);
+    try {
+      return new PrintStream(out, false, encoding);
+    } catch (IOException ex) {
+      out.close();
+      throw ex;
+    }
+  }
+}
@@ -112,8 +112,8 @@ public class ReplaceByVirtualDocumentPR
             + getDocument().getName());
 
 
-    String newText = stringFromDocumentWithAnnotations.getStringForDocument(
-            getDocument(), inputAnnotationSetName);
+    String newText = stringFromDocumentWithAnnotations.transform(
+            getDocument(), inputAnnotationSetName).getText();
     Set<String> asnames = new HashSet<String>();
     asnames.addAll(getDocument().getAnnotationSetNames());
     if(asnames != null) {
@@ -0,0 +1,318 @@
+/*
+ *  SegmentOffsetMapStore.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.util.GateRuntimeException;
+import java.util.Arrays;
+
+/**
+ * Offset map storage that only keeps the ranges that were added: a range
+ * where all offsets map to the same from and to offsets is stored as a
+ * constant segment, a copied range as a linear segment. Consecutive ranges
+ * that continue the previous segment are merged into it.
+ * The memory needed grows with the number of ranges, not with the length of
+ * the mapped document; lookups use a binary search over the segment starts.
+ *
+ * @author Johann Petrak
+ */
+class SegmentOffsetMapStore extends OffsetMapStore {
+
+  // For segment i, the first offset it maps. The segment ends where the
+  // next segment starts or at size for the last segment.
+  private int[] segStart = new int[INITIAL_CAPACITY];
+  // For segment i, the from offset of the first offset in the segment.
+  private int[] segFrom = new int[INITIAL_CAPACITY];
+  // For segment i, the to offset of all offsets in a constant segment or
+  // -1 for a copy segment where the offset at segStart+j maps to
+  // segFrom+j .. segFrom+j+1
+  private int[] segTo = new int[INITIAL_CAPACITY];
+  private int nrSegments = 0;
+  private int size = 0;
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int COPY = -1;
+
+  /**
+   * Create the segments for the offsets mapped by another store. Runs of
+   * offsets that map to the same from and to offsets become constant
+   * segments and runs of offsets that map to consecutive one character
+   * ranges become copy segments.
+   */
+  static SegmentOffsetMapStore segmentsOf(OffsetMapStore store) {
+    if(store instanceof SegmentOffsetMapStore) {
+      return (SegmentOffsetMapStore)store;
+    }
+    SegmentOffsetMapStore segments = new SegmentOffsetMapStore();
+    int size = store.size();
+    int pos = 0;
+    while(pos < size) {
+      int from = store.getFrom(pos);
+      int to = store.getTo(pos);
+      int end = pos+1;
+      while(end < size && store.getFrom(end) == from && store.getTo(end) == to) {
+        end++;
+      }
+      if(end == pos+1 && to == from+1) {
+        // a single offset with a one character range: continue a copy
+        while(end < size && store.getFrom(end) == from+end-pos &&
+              store.getTo(end) == from+end-pos+1 &&
+              (end+1 == size || store.getFrom(end+1) != store.getFrom(end))) {
+          end++;
+        }
+        segments.fillCopyRange(pos, end-pos, from);
+      } else {
+        segments.fillRange(pos, end-pos, from, to);
+      }
+      pos = end;
+    }
+    segments.trimToSize();
+    return segments;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * The number of segments used to represent the map.
+   */
+  int getNrSegments() {
+    return nrSegments;
+  }
+
+  int getSegmentStart(int seg) {
+    return segStart[seg];
+  }
+
+  int getSegmentEnd(int seg) {
+    return (seg+1 < nrSegments) ? segStart[seg+1] : size;
+  }
+
+  int getSegmentFrom(int seg) {
+    return segFrom[seg];
+  }
+
+  /**
+   * The to offset of a constant segment or -1 for a copy segment.
+   */
+  int getSegmentTo(int seg) {
+    return segTo[seg];
+  }
+
+  boolean isCopySegment(int seg) {
+    return segTo[seg] == COPY;
+  }
+
+  /**
+   * The number of the segment that contains offset, which must be
+   * a valid offset.
+   */
+  int findSegment(int offset) {
+    checkIndex(offset);
+    int idx = Arrays.binarySearch(segStart, 0, nrSegments, offset);
+    if(idx < 0) {
+      idx = -idx - 2;
+    }
+    return idx;
+  }
+
+  /**
+   * The number of the segment that contains offset, searching only the
+   * segments from fromSeg onwards. The offset must not be before the start
+   * of segment fromSeg. The segments are searched with increasing
+   * steps first, so this is fast if the offset is close to fromSeg.
+   */
+  int findSegment(int offset, int fromSeg) {
+    checkIndex(offset);
+    int lo = fromSeg;
+    int hi = fromSeg+1;
+    int step = 1;
+    while(hi < nrSegments && segStart[hi] <= offset) {
+      lo = hi;
+      hi += step;
+      step <<= 1;
+    }
+    if(hi > nrSegments) {
+      hi = nrSegments;
+    }
+    int idx = Arrays.binarySearch(segStart, lo, hi, offset);
+    if(idx < 0) {
+      idx = -idx - 2;
+    }
+    return idx;
+  }
+
+  /**
+   * Map all the ranges in a single sweep over the segments: since the start
+   * offsets are increasing, the segment of each start offset is found by
+   * moving forward from the segment of the previous one and the segment of
+   * the end offset by searching forward from there.
+   */
+  @Override
+  void mapRanges(int[] starts, int[] ends, int n,
+          int[] newStarts, int[] newEnds) {
+    int seg = 0;
+    for(int i = 0; i < n; i++) {
+      int start = starts[i];
+      checkIndex(start);
+      if(start < segStart[seg]) {
+        throw new GateRuntimeException("Start offsets not in increasing order at "+start);
+      }
+      while(seg+1 < nrSegments && segStart[seg+1] <= start) {
+        seg++;
+      }
+      newStarts[i] = getFrom(seg, start);
+      int last = Math.max(ends[i]-1, 0);
+      int lastSeg;
+      if(last >= start) {
+        lastSeg = findSegment(last, seg);
+      } else {
+        lastSeg = findSegment(last);
+      }
+      newEnds[i] = getTo(lastSeg, last);
+    }
+  }
+
+  int getFrom(int offset) {
+    return getFrom(findSegment(offset), offset);
+  }
+
+  int getTo(int offset) {
+    return getTo(findSegment(offset), offset);
+  }
+
+  /**
+   * The from offset for offset which must be contained in segment seg.
+   */
+  int getFrom(int seg, int offset) {
+    if(segTo[seg] == COPY) {
+      return segFrom[seg] + offset - segStart[seg];
+    } else {
+      return segFrom[seg];
+    }
+  }
+
+  /**
+   * The to offset for offset which must be contained in segment seg.
+   */
+  int getTo(int seg, int offset) {
+    if(segTo[seg] == COPY) {
+      return segFrom[seg] + offset - segStart[seg] + 1;
+    } else {
+      return segTo[seg];
+    }
+  }
+
+  void fillRange(int pos, int length, int from, int to) {
+    addRange(pos, length, from, to);
+  }
+
+  void fillCopyRange(int pos, int length, int from) {
+    addRange(pos, length, from, COPY);
+  }
+
+  // Add a constant range or, if to is COPY, a copy range. As with the
+  // array storage, a gap before the range is filled with the first from
+  // and to values and offsets that have already been mapped are
+  // overwritten, in both cases with a warning.
+  private void addRange(int pos, int length, int from, int to) {
+    if(length <= 0) {
+      return;
+    }
+    if(pos < 0) {
+      throw new GateRuntimeException("Trying to set map element at index "+pos);
+    }
+    if(pos < size) {
+      logger.warn("Trying to set map element that exists: "+pos+" size is "+size);
+      overwriteRange(pos, length, from, to);
+      return;
+    } else if(pos > size) {
+      logger.warn("Trying to set map element after gap: "+pos+" size is "+size);
+      appendRange(size, pos-size, from, to == COPY ? from+1 : to);
+    }
+    appendRange(pos, length, from, to);
+  }
+
+  // Add a range that starts at size, merging it into the last segment
+  // if it continues that segment.
+  private void appendRange(int pos, int length, int from, int to) {
+    int last = nrSegments-1;
+    boolean continues;
+    if(last < 0) {
+      continues = false;
+    } else if(to == COPY) {
+      continues = segTo[last] == COPY &&
+        segFrom[last] + pos - segStart[last] == from;
+    } else {
+      continues = segTo[last] == to && segFrom[last] == from;
+    }
+    if(continues) {
+      size = pos+length;
+    } else {
+      addSegment(pos, length, from, to);
+    }
+  }
+
+  // Replace the mappings of the offsets from pos to pos+length, keeping
+  // those of any offsets after the range.
+  private void overwriteRange(int pos, int length, int from, int to) {
+    int end = pos+length;
+    int nrTail = 0;
+    int[] tailStart = null;
+    int[] tailEnd = null;
+    int[] tailFrom = null;
+    int[] tailTo = null;
+    if(end < size) {
+      int firstTail = findSegment(end);
+      nrTail = nrSegments-firstTail;
+      tailStart = new int[nrTail];
+      tailEnd = new int[nrTail];
+      tailFrom = new int[nrTail];
+      tailTo = new int[nrTail];
+      for(int i = 0; i < nrTail; i++) {
+        int seg = firstTail+i;
+        tailStart[i] = Math.max(segStart[seg], end);
+        tailEnd[i] = getSegmentEnd(seg);
+        tailFrom[i] = getFrom(seg, tailStart[i]);
+        tailTo[i] = segTo[seg];
+      }
+    }
+    int first = findSegment(pos);
+    nrSegments = (segStart[first] == pos) ? first : first+1;
+    size = pos;
+    appendRange(pos, length, from, to);
+    for(int i = 0; i < nrTail; i++) {
+      appendRange(tailStart[i], tailEnd[i]-tailStart[i], tailFrom[i], tailTo[i]);
+    }
+  }
+
+  void trimToSize() {
+    if(segStart.length > nrSegments) {
+      segStart = Arrays.copyOf(segStart, nrSegments);
+      segFrom = Arrays.copyOf(segFrom, nrSegments);
+      segTo = Arrays.copyOf(segTo, nrSegments);
+    }
+  }
+
+  private void addSegment(int pos, int length, int from, int to) {
+    if(nrSegments == segStart.length) {
+      int newCapacity = segStart.length + (segStart.length >> 1) + 1;
+      segStart = Arrays.copyOf(segStart, newCapacity);
+      segFrom = Arrays.copyOf(segFrom, newCapacity);
+      segTo = Arrays.copyOf(segTo, newCapacity);
+    }
+    segStart[nrSegments] = pos;
+    segFrom[nrSegments] = from;
+    segTo[nrSegments] = to;
+    nrSegments++;
+    size = pos+length;
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ *  StoredOffsetMapping.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Document;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Base64;
+
+/**
+ * An offset mapping in its compact binary form, together with the name of
+ * the document whose offsets it maps to, so it can be kept after the
+ * virtual document has been created: as a document feature of the virtual
+ * document or in a separate file.
+ * <p>
+ * The mapping is only decoded when it is needed for the first time.
+ * The string form, as returned by {@link #toString()}, can be passed to
+ * the constructor; this is what is stored as the document feature, so the
+ * mapping survives any way of saving the document.
+ *
+ * @author Johann Petrak
+ */
+public class StoredOffsetMapping implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The document feature that holds the stored backward offset mapping
+   * of a virtual document.
+   */
+  public static final String FEATURE_NAME = "virtualDocumentOffsetMapping";
+
+  /**
+   * The file name extension for stored mappings written to a file.
+   */
+  public static final String EXTENSION = ".vmap";
+
+  private static final int MAGIC = 0x564d4150; // VMAP
+  private static final int VERSION = 1;
+
+  private String documentName;
+  private byte[] data;
+  private transient volatile OffsetMapping mapping;
+
+  /**
+   * Store a mapping to offsets in the document with the given name.
+   */
+  public StoredOffsetMapping(OffsetMapping mapping, String documentName) {
+    this.documentName = documentName;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      mapping.writeTo(out);
+      out.close();
+    } catch (IOException ex) {
+      // cannot happen when writing to memory
+      throw new IllegalStateException(ex);
+    }
+    data = bytes.toByteArray();
+    this.mapping = mapping;
+  }
+
+  /**
+   * Restore a stored mapping from the string returned by
+   * {@link #toString()}.
+   */
+  public StoredOffsetMapping(String string) {
+    try {
+      DataInputStream in = new DataInputStream(
+              new ByteArrayInputStream(Base64.getDecoder().decode(string)));
+      readFrom(in);
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Not a stored offset mapping", ex);
+    }
+  }
+
+  private StoredOffsetMapping() {
+  }
+
+  /**
+   * The mapping stored as the {@link #FEATURE_NAME} feature of a document,
+   * or null if the document does not have that feature.
+   *
+   * @throws IllegalArgumentException if the feature is not a stored mapping
+   */
+  public static StoredOffsetMapping getFromFeature(Document doc) {
+    Object value = doc.getFeatures().get(FEATURE_NAME);
+    if(value == null) {
+      return null;
+    } else if(value instanceof StoredOffsetMapping) {
+      return (StoredOffsetMapping)value;
+    } else if(value instanceof String) {
+      return new StoredOffsetMapping((String)value);
+    }
+    throw new IllegalArgumentException("Not a stored offset mapping: "+
+      value.getClass().getName());
+  }
+
+  /**
+   * The name of the document the offsets are mapped to, or null.
+   */
+  public String getDocumentName() {
+    return documentName;
+  }
+
+  /**
+   * The mapping, which gets decoded on the first call.
+   */
+  public OffsetMapping getMapping() {
+    OffsetMapping result = mapping;
+    if(result == null) {
+      try {
+        result = OffsetMapping.readFrom(
+                new DataInputStream(new ByteArrayInputStream(data)));
+      } catch (IOException ex) {
+        throw new IllegalStateException("Invalid stored offset mapping", ex);
+      }
+      mapping = result;
+    }
+    return result;
+  }
+
+  /**
+   * Write the stored mapping, e.g. to a file. The stream is not closed.
+   */
+  public void write(OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(MAGIC);
+    BinaryValues.writeVarInt(out, VERSION);
+    out.writeBoolean(documentName != null);
+    if(documentName != null) {
+      BinaryValues.writeString(out, documentName);
+    }
+    BinaryValues.writeVarInt(out, data.length);
+    out.write(data);
+    out.flush();
+  }
+
+  /**
+   * Read a stored mapping written by {@link #write(OutputStream)}. The
+   * stream is not closed.
+   */
+  public static StoredOffsetMapping read(InputStream stream) throws IOException {
+    StoredOffsetMapping stored = new StoredOffsetMapping();
+    stored.readFrom(new DataInputStream(stream));
+    return stored;
+  }
+
+  private void readFrom(DataInputStream in) throws IOException {
+    if(in.readInt() != MAGIC) {
+      throw new IOException("Not a stored offset mapping");
+    }
+    int version = BinaryValues.readVarInt(in);
+    if(version != VERSION) {
+      throw new IOException("Unsupported stored offset mapping version: "+version);
+    }
+    documentName = in.readBoolean() ? BinaryValues.readString(in) : null;
+    data = new byte[BinaryValues.readVarInt(in)];
+    in.readFully(data);
+  }
+
+  /**
+   * The stored mapping as a string which can be passed to
+   * {@link #StoredOffsetMapping(String)}.
+   */
+  @Override
+  public String toString() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      write(bytes);
+    } catch (IOException ex) {
+      // cannot happen when writing to memory
+      throw new IllegalStateException(ex);
+    }
+    return Base64.getEncoder().encodeToString(bytes.toByteArray());
+  }
+}
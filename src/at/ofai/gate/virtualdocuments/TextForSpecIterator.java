@@ -11,49 +11,74 @@
 package at.ofai.gate.virtualdocuments;
 
 import gate.Annotation;
-import gate.AnnotationSet;
 import gate.Document;
-import gate.Utils;
 import gate.util.GateRuntimeException;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
 
   public class TextForSpecIterator implements Iterator<String> {
 
     static final String ERRMSG = "before first call of next() or after hasNext() is false";
     Document theDocument;
-    AnnotationSet theAnnSet;
-    AnnotationSet curOff_Set;
+    // the document text, fetched once when the iterator is created
+    String theText;
+    // the relevant annotations of the document in offset order
+    AnnotationSnapshot theSnapshot;
+    // for each specification, the snapshot index of the annotation selected
+    // at the current offset or -1
+    int[] curOff_Best;
+    // true if any specification selected an annotation at the current offset
+    boolean curOff_HasMatch = false;
     int toOffset = 0; // the offset after the last character to include
     int curOffset = 0;
-    List<AnnotationParm> annSpecs;
+    CompiledSpecifications compiledSpecs;
     int curAnnSpec = 0;
-    private Set<String> annotationTypes = new HashSet<String>();
     boolean takeAll;
     boolean takeOverlapping;
 
-    TextForSpecIterator(Document doc, String annSetName, List<AnnotationParm> annParms, Set<String> anntypes, boolean takeall, boolean takeoverlapping) {
+    // The snapshot index of the first annotation that starts at or after
+    // the current offset. If the specification list does not
+    // contain @STRING, nothing can ever be found at an offset where no
+    // annotation starts, so instead of checking every single offset we
+    // jump from one start offset in the snapshot to the next.
+    int snapshotIndex = 0;
+    boolean jumpToStartOffsets = false;
+
+    // If true, @STRING does not return single characters but the whole
+    // text up to the next offset where some other specification matches.
+    boolean stringChunks = false;
+
+    TextForSpecIterator(Document doc, String annSetName, CompiledSpecifications specs, boolean takeall, boolean takeoverlapping, boolean stringchunks) {
+      takeAll = takeall;
+      takeOverlapping = takeoverlapping;
+      stringChunks = stringchunks;
+      compiledSpecs = specs;
+      init(doc,annSetName,null,null,null);
+    }
+    TextForSpecIterator(Document doc, String annSetName, Long fromOffset, Long toOffset, CompiledSpecifications specs, boolean takeall, boolean takeoverlapping, boolean stringchunks) {
       takeAll = takeall;
       takeOverlapping = takeoverlapping;
-      annotationTypes = anntypes;
-      annSpecs = annParms;
-      init(doc,annSetName,null,null);
+      stringChunks = stringchunks;
+      compiledSpecs = specs;
+      init(doc,annSetName,fromOffset,toOffset,null);
     }
-    TextForSpecIterator(Document doc, String annSetName, Long fromOffset, Long toOffset, List<AnnotationParm> annParms, Set<String> anntypes, boolean takeall, boolean takeoverlapping) {
+    // Use the part of docSnapshot, a snapshot of the whole document created
+    // for the same specifications, instead of collecting the annotations
+    // from the document again.
+    TextForSpecIterator(Document doc, String annSetName, Long fromOffset, Long toOffset, AnnotationSnapshot docSnapshot, CompiledSpecifications specs, boolean takeall, boolean takeoverlapping, boolean stringchunks) {
       takeAll = takeall;
       takeOverlapping = takeoverlapping;
-      annotationTypes = anntypes;
-      annSpecs = annParms;
-      init(doc,annSetName,fromOffset,toOffset);
+      stringChunks = stringchunks;
+      compiledSpecs = specs;
+      init(doc,annSetName,fromOffset,toOffset,docSnapshot);
     }
 
-    private void init(Document doc, String annSetName, Long from, Long to) {
+    private void init(Document doc, String annSetName, Long from, Long to,
+            AnnotationSnapshot docSnapshot) {
       theDocument = doc;
-      theAnnSet = theDocument.getAnnotations(annSetName);
+      theText = theDocument.getContent().toString();
       if(to == null) {
-        toOffset = gate.Utils.length(theDocument);
+        toOffset = theText.length();
       } else {
         toOffset = to.intValue();
       }
@@ -62,15 +87,69 @@ import java.util.Set;
       } else {
         curOffset = from.intValue();
       }
-      theAnnSet = theAnnSet.get(annotationTypes);
-      theAnnSet = theAnnSet.get(new Long(curOffset),new Long(toOffset));
-      //logger.debug("Annotations in start set: "+theAnnSet.size());
-      //logger.debug("Parameter specifications: "+annSpecs);
+      if(docSnapshot != null) {
+        theSnapshot = docSnapshot.slice(curOffset, toOffset);
+      } else {
+        theSnapshot = AnnotationSnapshot.create(
+          theDocument.getAnnotations(annSetName), compiledSpecs,
+          curOffset, toOffset);
+      }
+      //logger.debug("Annotations in snapshot: "+theSnapshot.size());
+      jumpToStartOffsets = !compiledSpecs.hasStringSpec();
+      curOff_Best = new int[compiledSpecs.size()];
+      Arrays.fill(curOff_Best, -1);
+      snapshotIndex = 0;
       curAnnSpec = 0;   // the annotation specification to process next
-      curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
+      gotoOffset(curOffset);
       determineNextMatch();
     }
 
+    // Make offset the current offset and find the annotations starting there
+    // that are selected by each of the specifications.
+    // If we can jump, the current offset becomes the first start offset
+    // of an annotation at or after offset or toOffset if there is none.
+    private void gotoOffset(int offset) {
+      snapshotIndex = theSnapshot.firstStartingAtOrAfter(offset, snapshotIndex);
+      boolean haveStart = snapshotIndex < theSnapshot.size();
+      if(jumpToStartOffsets) {
+        if(haveStart) {
+          offset = theSnapshot.getStart(snapshotIndex);
+        } else {
+          offset = toOffset;
+        }
+      }
+      curOffset = offset;
+      if(curOffset < toOffset && haveStart &&
+         theSnapshot.getStart(snapshotIndex) == curOffset) {
+        curOff_HasMatch = compiledSpecs.classify(theSnapshot,
+          snapshotIndex, theSnapshot.endOfSameStart(snapshotIndex),
+          toOffset, curOff_Best);
+      } else if(curOff_HasMatch) {
+        Arrays.fill(curOff_Best, -1);
+        curOff_HasMatch = false;
+      }
+    }
+
+    // Advance the current offset over all the offsets where no specification
+    // other than @STRING matches, i.e. to the next offset where some
+    // specification matches or to toOffset.
+    private void skipUnmatchedOffsets() {
+      do {
+        int next = toOffset;
+        // gotoOffset has already moved the index to the first annotation
+        // which does not start before the current offset
+        if(snapshotIndex < theSnapshot.size()) {
+          next = theSnapshot.getStart(snapshotIndex);
+          if(next == curOffset) {
+            int after = theSnapshot.endOfSameStart(snapshotIndex);
+            next = (after < theSnapshot.size()) ?
+              theSnapshot.getStart(after) : toOffset;
+          }
+        }
+        gotoOffset(next);
+      } while(curOffset < toOffset && !curOff_HasMatch);
+    }
+
     // this always contains the the next annotation or null if no more
     // annotations are available;
     protected Annotation nextAnnotation = null;
@@ -86,11 +165,16 @@ import java.util.Set;
     // call to next() returned. This is set in next()
     protected int currentSpecNo = -1;
 
-    private String nextContent = null;
-    private String currentContent = null;
+    // the content is a ContentSlice if it is a copy of the document text
+    private CharSequence nextContent = null;
+    private CharSequence currentContent = null;
 
-    private Long currentOffset = null;
-    private Long nextOffset = null;
+    // the start and end offsets of the text the content is taken from:
+    // either the annotation or the text taken for @STRING
+    private int currentOffset = -1;
+    private int nextOffset = -1;
+    private int currentEndOffset = -1;
+    private int nextEndOffset = -1;
 
     private String currentSpec = null;
     private String nextSpec = null;
@@ -114,141 +198,96 @@ import java.util.Set;
       // have the correct value
       nextContent = null;
       nextAnnotation = null;
-      nextOffset = -1l;
+      nextOffset = -1;
+      nextEndOffset = -1;
       nextSpecNo = -1;
       nextSpec = null;
       //System.out.println("Trying to determine next content curOffset="+curOffset+", toOffset="+toOffset);
       while (curOffset < toOffset) {
         // lets see if we find an annotation related to curAnnSpec at curOffset
         //logger.debug("Checking offset/sec: "+curOffset+"/"+curAnnSpec);
-        //System.out.println("Iterating at offset="+curOffset+" of "+toOffset+", curAnnSpec="+curAnnSpec+", got="+curOff_Set.size());
-        AnnotationParm parm = annSpecs.get(curAnnSpec);
-        String typeName = parm.getTypeName();
-        Set<String>  featureSet = parm.getFeatureSet();
-        String featureName = parm.getFeatureName();
-        String constantValue = parm.getConstantValue();
-        AnnotationSet tmpSet = null;
-        //logger.debug("Checking specification type/feature: "+typeName+"/"+featureName);
-        //logger.debug("Annotations in CurAnnSet: "+curOff_Set.size());
-        if(typeName.equals("@STRING")) {
+        if(compiledSpecs.isStringSpec(curAnnSpec)) {
           // if we arrive at this spec, set the content to the character
           // at the current position, leave the ann null and advance the
-          // offset by one and reset the spec number to 0
+          // offset by one and reset the spec number to 0.
+          // If we take chunks, take all characters up to the next offset
+          // where some other spec matches instead.
           nextAnnotation = null;
           nextSpecNo = curAnnSpec;
-          nextContent = theDocument.getContent().toString().substring(curOffset,curOffset+1);
-          nextOffset = new Long(curOffset);
-          nextSpec = annSpecs.get(nextSpecNo).toString();
+          nextOffset = curOffset;
+          nextSpec = compiledSpecs.getSpecString(nextSpecNo);
           curAnnSpec = 0;
-          curOffset++;
-          curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
-          //System.out.println("B: Going to next offset="+curOffset+" found "+curOff_Set.size());
-          break;
-        }
-        // TODO: when is this needed? if curOff_Set is empty, only if one
-        // of the next annSpecs is @String, otherwise we will never get
-        // something
-        if(curOff_Set.size() == 0) {
-          //System.out.println("curOff_Set is empty, get for next annspec");
-          curAnnSpec++;
-          if(curAnnSpec >= annSpecs.size()) {
-            curAnnSpec = 0;
-            curOffset++;
-            curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
-            //System.out.println("C: Going to next offset="+curOffset+" found "+curOff_Set.size());
+          if(stringChunks) {
+            skipUnmatchedOffsets();
+          } else {
+            gotoOffset(curOffset+1);
           }
-          continue;
-        }
-        if(featureSet == null) {
-          tmpSet = curOff_Set.get(typeName);
-        } else {
-          tmpSet = curOff_Set.get(typeName,featureSet);
+          nextEndOffset = curOffset;
+          nextContent = new ContentSlice(theText,nextOffset,nextEndOffset);
+          //System.out.println("B: Going to next offset="+curOffset);
+          break;
         }
-        //logger.debug("Size of tmpSet: "+tmpSet.size());
-        //System.out.println("After checking for anns, tmpSet has "+tmpSet.size());
-        if(!tmpSet.isEmpty()) {
-          // get the longest annotation in the set, but only if it fits
-          // and ends before toOffset
-          Annotation ann = null;
-          int maxlength = -1;
-          Iterator<Annotation> it = tmpSet.iterator();
-          while(it.hasNext()) {
-            Annotation tmpAnn = it.next();
-            if(Utils.length(tmpAnn) > maxlength &&
-               tmpAnn.getEndNode().getOffset().intValue() <= toOffset) {
-              maxlength = Utils.length(tmpAnn);
-              ann = tmpAnn;
-            }
-          }
-          // ann should now contain the longest annotation, or is still null
-          // if none of the ones found fitted
-          if(ann == null) {
-            //logger.debug("Did not find a fitting longest annotation");
-            //System.out.println("Did not find a fitting longest ann");
-            curAnnSpec++;
-            if(curAnnSpec >= annSpecs.size()) {
-              curAnnSpec = 0;
-              curOffset++;
-              curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
-              //System.out.println("A: Going to next offset="+curOffset+" found "+curOff_Set.size());
-            }
-            continue;
-          }
-          String toAppend;
+        // the snapshot index of the longest fitting annotation for this
+        // spec at this offset, or -1 if there is none
+        int k = curOff_Best[curAnnSpec];
+        if(k >= 0) {
+          AnnotationParm parm = compiledSpecs.getAnnotationParm(curAnnSpec);
+          String constantValue = parm.getConstantValue();
+          int featureSlot = compiledSpecs.getRequiredFeatureSlot(curAnnSpec);
+          int annStart = theSnapshot.getStart(k);
+          int annEnd = theSnapshot.getEnd(k);
+          CharSequence toAppend;
           if(constantValue != null) {
             toAppend = constantValue;
             //logger.debug("Getting constant value");
             //System.out.println("Appending constant value: >"+toAppend+"<");
-          } else if(featureName != null) {
-        	//logger.debug("Getting value for feature "+featureName);
-            toAppend = ann.getFeatures().get(featureName).toString();
+          } else if(featureSlot >= 0) {
+        	//logger.debug("Getting value for feature "+parm.getFeatureName());
+            toAppend = theSnapshot.getFeatureValue(k, featureSlot).toString();
             //System.out.println("Appending for feature: "+toAppend);
           } else {
         	//logger.debug("Getting underlying string");
-            toAppend = Utils.stringFor(theDocument, ann);
+            toAppend = new ContentSlice(theText, annStart, annEnd);
             //System.out.println("Appending string: "+toAppend);
           }
           //logger.debug("Found this content: "+toAppend);
           // ann is the annotation we want to pick, so set it
-          nextAnnotation = ann;
+          nextAnnotation = theSnapshot.getAnnotation(k);
           nextSpecNo = curAnnSpec;
           nextContent = toAppend;
-          nextOffset = ann.getStartNode().getOffset();
-          nextSpec = annSpecs.get(nextSpecNo).toString();
+          nextOffset = annStart;
+          nextEndOffset = annEnd;
+          nextSpec = compiledSpecs.getSpecString(nextSpecNo);
           // depending on the parameter settings, advance the offset
           if(takeAll) {
             // do not advance the offset, just the spec, but if we have
             // no more specs, also advance offset
             curAnnSpec++;
-            if(curAnnSpec >= annSpecs.size()) {
+            if(curAnnSpec >= compiledSpecs.size()) {
               curAnnSpec = 0;
-              curOffset++;
-              curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
-              //System.out.println("D: Going to next offset="+curOffset+" found "+curOff_Set.size());
+              gotoOffset(curOffset+1);
+              //System.out.println("D: Going to next offset="+curOffset);
             }
           } else if(takeOverlapping) {
             // go to next offset and start with parameters all over
             curAnnSpec = 0;
-            curOffset++;
-            curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
-            //System.out.println("E: Going to next offset="+curOffset+" found "+curOff_Set.size());
+            gotoOffset(curOffset+1);
+            //System.out.println("E: Going to next offset="+curOffset);
           } else {
             // skip after end of currently processed annotation and start with
             // specs all over
-            curOffset += gate.Utils.length(ann);
-            curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
-            //System.out.println("F: Going to next offset="+curOffset+" found "+curOff_Set.size());
+            gotoOffset(annEnd);
+            //System.out.println("F: Going to next offset="+curOffset);
             curAnnSpec = 0;
           }
           break;
         } else {
           // nothing found at that offset, try next spec or next offset
           curAnnSpec++;
-          if(curAnnSpec >= annSpecs.size()) {
+          if(curAnnSpec >= compiledSpecs.size()) {
             curAnnSpec = 0;
-            curOffset++;
-            curOff_Set = Utils.getAnnotationsAtOffset(theAnnSet,new Long(curOffset));
-            //System.out.println("G: Going to next offset="+curOffset+" found "+curOff_Set.size());
+            gotoOffset(curOffset+1);
+            //System.out.println("G: Going to next offset="+curOffset);
           }
         }
       }
@@ -272,16 +311,38 @@ import java.util.Set;
       if(currentContent == null) {
         throw new GateRuntimeException("Method getContent "+ERRMSG);
       }
-      return currentContent;
+      return currentContent.toString();
     }
 
     public Long getOffset() {
       if(currentContent == null) {
         throw new GateRuntimeException("Method getOffset "+ERRMSG);
       }
+      return Long.valueOf(currentOffset);
+    }
+
+    /**
+     * The start offset of the annotation or the @STRING text the current
+     * content was taken from.
+     */
+    int getStartOffset() {
+      if(currentContent == null) {
+        throw new GateRuntimeException("Method getStartOffset "+ERRMSG);
+      }
       return currentOffset;
     }
 
+    /**
+     * The end offset of the annotation or the @STRING text the current
+     * content was taken from.
+     */
+    int getEndOffset() {
+      if(currentContent == null) {
+        throw new GateRuntimeException("Method getEndOffset "+ERRMSG);
+      }
+      return currentEndOffset;
+    }
+
     public boolean hasNext() {
       return nextContent != null;
     }
@@ -301,10 +362,20 @@ import java.util.Set;
     }
 
     public String next() {
+      return nextSequence().toString();
+    }
+
+    /**
+     * Like {@link #next()} but without creating a String: if the content
+     * is taken from the document text, a {@link ContentSlice} of the text is
+     * returned.
+     */
+    CharSequence nextSequence() {
       currentAnnotation = nextAnnotation;
       currentSpecNo = nextSpecNo;
       currentContent = nextContent;
       currentOffset = nextOffset;
+      currentEndOffset = nextEndOffset;
       currentSpec = nextSpec;
       determineNextMatch();
       return currentContent;
@@ -0,0 +1,111 @@
+/*
+ *  TransformResult.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+/**
+ * The result of transforming one document with
+ * {@link AnnotatedDocumentTransformer#transform(gate.Document, String)}:
+ * the text of the virtual document and the offset maps between the
+ * original and the virtual document, if they were requested.
+ * <p>
+ * A result cannot be changed once it has been created, the offset maps are
+ * frozen, so it can be passed between threads and used for mapping
+ * annotations while the transformer is processing other documents.
+ *
+ * @author Johann Petrak
+ */
+public class TransformResult {
+
+  private final CharSequence text;
+  private final int length;
+  private final OffsetMapping forwardOffsetMap;
+  private final OffsetMapping backwardOffsetMap;
+  private final Long fromOffset;
+  private final Long toOffset;
+
+  TransformResult(CharSequence text, Long fromOffset, Long toOffset,
+          OffsetMapping forwardOffsetMap, OffsetMapping backwardOffsetMap) {
+    this(text, text.length(), fromOffset, toOffset,
+            forwardOffsetMap, backwardOffsetMap);
+  }
+
+  TransformResult(CharSequence text, int length, Long fromOffset, Long toOffset,
+          OffsetMapping forwardOffsetMap, OffsetMapping backwardOffsetMap) {
+    this.text = text;
+    this.length = length;
+    this.fromOffset = fromOffset;
+    this.toOffset = toOffset;
+    this.forwardOffsetMap = forwardOffsetMap;
+    this.backwardOffsetMap = backwardOffsetMap;
+    if(forwardOffsetMap != null) {
+      forwardOffsetMap.freeze();
+    }
+    if(backwardOffsetMap != null) {
+      backwardOffsetMap.freeze();
+    }
+  }
+
+  /**
+   * The text of the virtual document or null if the text was written to
+   * an Appendable.
+   */
+  public String getText() {
+    return text == null ? null : text.toString();
+  }
+
+  /**
+   * The text of the virtual document as a {@link VirtualText}, which has not
+   * been copied into a String unless {@link #getText()} has already been
+   * called, or null if the text was written to an Appendable.
+   */
+  public CharSequence getTextSequence() {
+    return text;
+  }
+
+  /**
+   * The length of the text of the virtual document.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * The offset in the original document where the transformed part
+   * starts or null if the document was transformed from the start.
+   */
+  public Long getFromOffset() {
+    return fromOffset;
+  }
+
+  /**
+   * The offset in the original document where the transformed part
+   * ends or null if the document was transformed up to the end.
+   */
+  public Long getToOffset() {
+    return toOffset;
+  }
+
+  /**
+   * The map from offsets in the original document to offsets in the
+   * virtual document or null if it was not generated.
+   */
+  public OffsetMapping getForwardOffsetMap() {
+    return forwardOffsetMap;
+  }
+
+  /**
+   * The map from offsets in the virtual document to offsets in the
+   * original document or null if it was not generated.
+   */
+  public OffsetMapping getBackwardOffsetMap() {
+    return backwardOffsetMap;
+  }
+}
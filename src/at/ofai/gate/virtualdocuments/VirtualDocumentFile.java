@@ -0,0 +1,359 @@
+/*
+ *  VirtualDocumentFile.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+import gate.util.InvalidOffsetException;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary format for a virtual document together with the offset
+ * maps between the virtual and the original document, so that annotations
+ * added to the virtual document later can still be mapped back to the
+ * original document without creating the virtual document again.
+ * <p>
+ * A file contains the name of the virtual document and of the original
+ * document, the text, the document features, all annotation sets and the
+ * forward and backward offset maps, if they exist. Annotation types, set
+ * names and feature names are written once to a string table and referred
+ * to by number, annotation offsets are written as differences to the
+ * previous annotation in as few bytes as needed and the offset maps are
+ * written as segments, see {@link OffsetMapping}.
+ * <p>
+ * Use {@link #write(Document, String, TransformResult, OutputStream)} to
+ * write a file and {@link #read(InputStream)} to load it again.
+ *
+ * @author Johann Petrak
+ */
+public class VirtualDocumentFile {
+
+  /**
+   * The file name extension used for this format.
+   */
+  public static final String EXTENSION = ".vdoc";
+
+  private static final int MAGIC = 0x56444f43; // VDOC
+  private static final int VERSION = 1;
+
+  // the flags for the offset maps that are included
+  private static final int FORWARD_MAP = 1;
+  private static final int BACKWARD_MAP = 2;
+
+  private Document document;
+  private String originalDocumentName;
+  private TransformResult transformResult;
+
+  private VirtualDocumentFile(Document document, String originalDocumentName,
+          TransformResult transformResult) {
+    this.document = document;
+    this.originalDocumentName = originalDocumentName;
+    this.transformResult = transformResult;
+  }
+
+  /**
+   * The virtual document that was read. It was created with the Factory and
+   * must be deleted with Factory.deleteResource when it is not needed any
+   * more.
+   */
+  public Document getDocument() {
+    return document;
+  }
+
+  /**
+   * The name of the original document the virtual document was created
+   * from.
+   */
+  public String getOriginalDocumentName() {
+    return originalDocumentName;
+  }
+
+  /**
+   * The text and the offset maps of the virtual document, as they were
+   * created by the transformation of the original document, for mapping
+   * annotations with
+   * {@link AnnotatedDocumentTransformer#addBackMappedAnnotations(TransformResult, Document, Document, List)}.
+   */
+  public TransformResult getTransformResult() {
+    return transformResult;
+  }
+
+  /**
+   * Write the virtual document with the offset maps of the transform
+   * result. The result can be null if the virtual document is just a copy
+   * of the original document, then no offset maps are written.
+   * The stream is not closed.
+   */
+  public static void write(Document virtualDoc, String originalDocumentName,
+          TransformResult result, OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    Map<String,Integer> stringIds = new HashMap<String,Integer>();
+    List<String> strings = new ArrayList<String>();
+
+    // collect the annotation sets in a fixed order and all the strings
+    List<String> setNames = new ArrayList<String>();
+    setNames.add(null);
+    Set<String> namedSets = virtualDoc.getNamedAnnotationSets().keySet();
+    if(namedSets != null) {
+      List<String> names = new ArrayList<String>(namedSets);
+      Collections.sort(names);
+      setNames.addAll(names);
+    }
+    List<Annotation[]> sets = new ArrayList<Annotation[]>();
+    for(String setName : setNames) {
+      AnnotationSet set = setName == null ?
+              virtualDoc.getAnnotations() : virtualDoc.getAnnotations(setName);
+      Annotation[] anns = set.toArray(new Annotation[set.size()]);
+      Arrays.sort(anns, START_ID_ORDER);
+      sets.add(anns);
+      stringId(setName, stringIds, strings);
+      for(Annotation ann : anns) {
+        stringId(ann.getType(), stringIds, strings);
+        collectKeys(ann.getFeatures(), stringIds, strings);
+      }
+    }
+    collectKeys(virtualDoc.getFeatures(), stringIds, strings);
+
+    out.writeInt(MAGIC);
+    BinaryValues.writeVarInt(out, VERSION);
+    writeNullableString(out, virtualDoc.getName());
+    writeNullableString(out, originalDocumentName);
+    String text = virtualDoc.getContent().toString();
+    BinaryValues.writeString(out, text);
+    BinaryValues.writeVarInt(out, strings.size());
+    for(String string : strings) {
+      BinaryValues.writeString(out, string);
+    }
+    writeFeatures(out, virtualDoc.getFeatures(), stringIds);
+    BinaryValues.writeVarInt(out, setNames.size());
+    for(int s = 0; s < setNames.size(); s++) {
+      writeStringId(out, setNames.get(s), stringIds);
+      Annotation[] anns = sets.get(s);
+      BinaryValues.writeVarInt(out, anns.length);
+      int lastStart = 0;
+      for(Annotation ann : anns) {
+        int start = ann.getStartNode().getOffset().intValue();
+        int end = ann.getEndNode().getOffset().intValue();
+        BinaryValues.writeVarInt(out, ann.getId());
+        writeStringId(out, ann.getType(), stringIds);
+        BinaryValues.writeVarInt(out, start - lastStart);
+        BinaryValues.writeVarInt(out, end - start);
+        writeFeatures(out, ann.getFeatures(), stringIds);
+        lastStart = start;
+      }
+    }
+    Long fromOffset = result == null ? null : result.getFromOffset();
+    Long toOffset = result == null ? null : result.getToOffset();
+    // offsets are written plus one, 0 stands for null
+    BinaryValues.writeVarInt(out, fromOffset == null ? 0 : fromOffset.intValue()+1);
+    BinaryValues.writeVarInt(out, toOffset == null ? 0 : toOffset.intValue()+1);
+    OffsetMapping forwardMap = result == null ? null : result.getForwardOffsetMap();
+    OffsetMapping backwardMap = result == null ? null : result.getBackwardOffsetMap();
+    out.writeByte((forwardMap != null ? FORWARD_MAP : 0) |
+                  (backwardMap != null ? BACKWARD_MAP : 0));
+    if(forwardMap != null) {
+      forwardMap.writeTo(out);
+    }
+    if(backwardMap != null) {
+      backwardMap.writeTo(out);
+    }
+    out.flush();
+  }
+
+  /**
+   * Read a virtual document written by
+   * {@link #write(Document, String, TransformResult, OutputStream)}.
+   * The stream should be buffered, it is not closed.
+   */
+  public static VirtualDocumentFile read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    if(in.readInt() != MAGIC) {
+      throw new IOException("Not a virtual document file");
+    }
+    int version = BinaryValues.readVarInt(in);
+    if(version != VERSION) {
+      throw new IOException("Unsupported virtual document file version: "+version);
+    }
+    String name = readNullableString(in);
+    String originalName = readNullableString(in);
+    String text = BinaryValues.readString(in);
+    String[] strings = new String[BinaryValues.readVarInt(in)];
+    for(int i = 0; i < strings.length; i++) {
+      strings[i] = BinaryValues.readString(in);
+    }
+    // the text is used as it is: with markupAware, GATE would parse any
+    // markup in it, change the text and add annotations of its own
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("stringContent", text);
+    params.put("markupAware", Boolean.FALSE);
+    Document doc;
+    try {
+      doc = (Document) Factory.createResource(
+              "gate.corpora.DocumentImpl", params, null, name);
+    } catch (ResourceInstantiationException ex) {
+      throw new IOException("Cannot create the virtual document: "+ex);
+    }
+    try {
+      doc.getFeatures().clear();
+      readFeatures(in, doc.getFeatures(), strings);
+      int nrSets = BinaryValues.readVarInt(in);
+      for(int s = 0; s < nrSets; s++) {
+        String setName = readStringId(in, strings);
+        AnnotationSet set = setName == null ?
+                doc.getAnnotations() : doc.getAnnotations(setName);
+        int nrAnns = BinaryValues.readVarInt(in);
+        int start = 0;
+        for(int a = 0; a < nrAnns; a++) {
+          Integer id = BinaryValues.readVarInt(in);
+          String type = readStringId(in, strings);
+          start += BinaryValues.readVarInt(in);
+          int end = start + BinaryValues.readVarInt(in);
+          FeatureMap features = Factory.newFeatureMap();
+          readFeatures(in, features, strings);
+          set.add(id, Long.valueOf(start), Long.valueOf(end), type, features);
+        }
+      }
+      int fromOffset = BinaryValues.readVarInt(in);
+      int toOffset = BinaryValues.readVarInt(in);
+      int maps = in.readByte();
+      OffsetMapping forwardMap = null;
+      OffsetMapping backwardMap = null;
+      if((maps & FORWARD_MAP) != 0) {
+        forwardMap = OffsetMapping.readFrom(in);
+      }
+      if((maps & BACKWARD_MAP) != 0) {
+        backwardMap = OffsetMapping.readFrom(in);
+      }
+      TransformResult result = new TransformResult(text,
+              fromOffset == 0 ? null : Long.valueOf(fromOffset-1),
+              toOffset == 0 ? null : Long.valueOf(toOffset-1),
+              forwardMap, backwardMap);
+      return new VirtualDocumentFile(doc, originalName, result);
+    } catch (InvalidOffsetException ex) {
+      Factory.deleteResource(doc);
+      throw new IOException("Invalid annotation offsets: "+ex.getMessage());
+    } catch (IOException ex) {
+      Factory.deleteResource(doc);
+      throw ex;
+    } catch (RuntimeException ex) {
+      Factory.deleteResource(doc);
+      throw ex;
+    }
+  }
+
+  // Feature keys which are strings are written as their id in the string
+  // table plus one, other keys as 0 followed by the key.
+  private static void writeFeatures(DataOutput out, FeatureMap features,
+          Map<String,Integer> stringIds) throws IOException {
+    if(features == null) {
+      BinaryValues.writeVarInt(out, 0);
+      return;
+    }
+    BinaryValues.writeVarInt(out, features.size());
+    for(Map.Entry<Object,Object> entry : features.entrySet()) {
+      if(entry.getKey() instanceof String) {
+        BinaryValues.writeVarInt(out, stringIds.get((String)entry.getKey())+1);
+      } else {
+        BinaryValues.writeVarInt(out, 0);
+        BinaryValues.writeValue(out, entry.getKey());
+      }
+      BinaryValues.writeValue(out, entry.getValue());
+    }
+  }
+
+  private static void readFeatures(DataInput in, FeatureMap features,
+          String[] strings) throws IOException {
+    int nrFeatures = BinaryValues.readVarInt(in);
+    for(int f = 0; f < nrFeatures; f++) {
+      int keyId = BinaryValues.readVarInt(in);
+      Object key = keyId == 0 ? BinaryValues.readValue(in) : strings[keyId-1];
+      features.put(key, BinaryValues.readValue(in));
+    }
+  }
+
+  private static void collectKeys(FeatureMap features,
+          Map<String,Integer> stringIds, List<String> strings) {
+    if(features == null) {
+      return;
+    }
+    for(Object key : features.keySet()) {
+      if(key instanceof String) {
+        stringId((String)key, stringIds, strings);
+      }
+    }
+  }
+
+  // the id of a string in the string table, -1 for null
+  private static int stringId(String string, Map<String,Integer> stringIds,
+          List<String> strings) {
+    if(string == null) {
+      return -1;
+    }
+    Integer id = stringIds.get(string);
+    if(id == null) {
+      id = strings.size();
+      stringIds.put(string, id);
+      strings.add(string);
+    }
+    return id;
+  }
+
+  // strings from the string table are written as their id plus one,
+  // 0 stands for null
+  private static void writeStringId(DataOutput out, String string,
+          Map<String,Integer> stringIds) throws IOException {
+    BinaryValues.writeVarInt(out, string == null ? 0 : stringIds.get(string)+1);
+  }
+
+  private static String readStringId(DataInput in, String[] strings)
+          throws IOException {
+    int id = BinaryValues.readVarInt(in);
+    return id == 0 ? null : strings[id-1];
+  }
+
+  private static void writeNullableString(DataOutput out, String string)
+          throws IOException {
+    out.writeBoolean(string != null);
+    if(string != null) {
+      BinaryValues.writeString(out, string);
+    }
+  }
+
+  private static String readNullableString(DataInput in) throws IOException {
+    return in.readBoolean() ? BinaryValues.readString(in) : null;
+  }
+
+  private static final Comparator<Annotation> START_ID_ORDER =
+          new Comparator<Annotation>() {
+    public int compare(Annotation a1, Annotation a2) {
+      int c = a1.getStartNode().getOffset().compareTo(a2.getStartNode().getOffset());
+      return c != 0 ? c : a1.getId().compareTo(a2.getId());
+    }
+  };
+}
@@ -0,0 +1,158 @@
+/*
+ *  VirtualDocumentPipeline.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import gate.Document;
+import gate.creole.ExecutionException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Process the documents of a corpus for the
+ * {@link IndirectLanguageAnalyserPR} so that the language analyser runs
+ * in separate threads while the controller goes on with the next
+ * documents.
+ * <p>
+ * The virtual document is created in the thread that submits the
+ * documents, i.e. the controller thread, while the document is processed
+ * by the PR. Analysing the virtual document and mapping the annotations
+ * back to the original document is done by one of the threads of the
+ * executor, with one of the analysers of the PR's pool, while the
+ * controller creates the virtual document for the next document. If there
+ * are several threads, several documents are analysed at the same time,
+ * but each document is only accessed by one thread at a time. This is
+ * only correct if nothing else reads or changes a document after it has
+ * been submitted, so the PR must be the last PR of the controller (see
+ * {@link IndirectLanguageAnalyserPR#controllerExecutionStarted}). All
+ * documents have been mapped back when {@link #finish()} returns.
+ *
+ * @author Johann Petrak
+ */
+class VirtualDocumentPipeline {
+
+  // a submitted document which was not found in the cache
+  private static class Item {
+    Document original;
+    TransformResult transformResult;
+    Document virtualDocument;
+    int firstNewId;
+    String cacheKey;
+    // analysing the virtual document and mapping back its annotations
+    Future<?> future;
+    Item(Document original) {
+      this.original = original;
+    }
+  }
+
+  private IndirectLanguageAnalyserPR pr;
+  private int maxInProgress;
+  private ExecutorService executor;
+  // the submitted documents which have not been checked for errors yet
+  private LinkedList<Item> pending = new LinkedList<Item>();
+
+  VirtualDocumentPipeline(IndirectLanguageAnalyserPR pr,
+          ExecutorService executor, int maxInProgress) {
+    this.pr = pr;
+    this.executor = executor;
+    this.maxInProgress = maxInProgress;
+  }
+
+  /**
+   * Create the virtual document for the document and hand it to the
+   * executor, which also maps back the annotations. If the
+   * annotations are found in the cache, they are mapped back right away.
+   * If too many documents are in progress, wait for the oldest one.
+   */
+  void submit(Document doc) throws ExecutionException {
+    final Item item = new Item(doc);
+    item.transformResult = pr.transformDocument(doc);
+    item.cacheKey = pr.getCacheKey(item.transformResult, doc);
+    CachedAnnotations cached = pr.getCachedAnnotations(item.cacheKey);
+    if(cached != null) {
+      pr.mapBack(item.transformResult, doc, cached);
+    } else {
+      item.virtualDocument = pr.createVirtualDocument(
+              doc, item.transformResult.getText(), false, true);
+      pr.mapForward(item.transformResult, doc, item.virtualDocument);
+      item.firstNewId = pr.firstNewAnnotationId(item.virtualDocument);
+      item.future = executor.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          try {
+            pr.analyseWithPool(item.virtualDocument);
+            pr.addToCache(item.cacheKey, item.virtualDocument, item.firstNewId);
+            pr.mapBack(item.transformResult, item.original,
+                    item.virtualDocument, item.firstNewId);
+          } finally {
+            pr.releaseVirtualDocument(item.virtualDocument);
+          }
+          return null;
+        }
+      });
+      pending.add(item);
+    }
+    while(!pending.isEmpty() &&
+          (pending.size() > maxInProgress || pending.getFirst().future.isDone())) {
+      finishItem(pending.removeFirst());
+    }
+  }
+
+  /**
+   * Wait until all submitted documents have been analysed and mapped
+   * back.
+   */
+  void finish() throws ExecutionException {
+    try {
+      while(!pending.isEmpty()) {
+        finishItem(pending.removeFirst());
+      }
+    } finally {
+      abort();
+    }
+  }
+
+  /**
+   * Do not analyse the documents that are still pending and delete their
+   * virtual documents. Documents whose analysis has already started are
+   * still mapped back. The executor is left to the PR.
+   */
+  void abort() {
+    for(Item item : pending) {
+      // a task that never ran cannot release its virtual document
+      if(item.future.cancel(false)) {
+        pr.releaseVirtualDocument(item.virtualDocument);
+      }
+    }
+    for(Item item : pending) {
+      try {
+        item.future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (Exception ex) {
+        // cancelled or failed, we do not need the result
+      }
+    }
+    pending.clear();
+  }
+
+  private void finishItem(Item item) throws ExecutionException {
+    try {
+      item.future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException(ex);
+    } catch (java.util.concurrent.ExecutionException ex) {
+      throw new ExecutionException("Error processing a virtual document",
+              ex.getCause());
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ *  VirtualText.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments;
+
+import java.util.Arrays;
+
+/**
+ * The text of a virtual document as a rope: a sequence of pieces, which is
+ * only copied into a single String when {@link #toString()} is called for the
+ * first time.
+ * <p>
+ * Appending a longer part of a String, e.g. a part of the text of the
+ * original document, does not copy it but just adds a reference to the
+ * String, and a part that directly follows the previous part of the same
+ * String just extends that piece. So a virtual document that mostly consists
+ * of text taken from the original document only needs a few pieces.
+ * Short parts, like separators, feature values or single characters, and
+ * anything that is not a String are copied into a buffer piece, since for
+ * these a reference would cost more than a copy.
+ * Once the text has been completed, it can be used by several threads.
+ *
+ * @author Johann Petrak
+ */
+public class VirtualText implements CharSequence, Appendable {
+
+  private CharSequence[] pieces = new CharSequence[16];
+  // the start offset of each piece in its character sequence
+  private int[] pieceStarts = new int[16];
+  // the offset in this text after the end of each piece
+  private int[] pieceEnds = new int[16];
+  private int nrPieces = 0;
+  // the buffer for short parts if it is the last piece, otherwise null
+  private StringBuilder buffer;
+  private int length = 0;
+  // the text as a string once it has been created
+  private volatile String flattened;
+
+  // the minimum length of a part of a String that gets shared
+  private static final int MIN_SHARED_LENGTH = 64;
+
+  public VirtualText() {
+  }
+
+  public VirtualText append(CharSequence csq) {
+    if(csq == null) {
+      csq = "null";
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  public VirtualText append(CharSequence csq, int start, int end) {
+    if(csq == null) {
+      csq = "null";
+    }
+    if(start < 0 || end < start || end > csq.length()) {
+      throw new IndexOutOfBoundsException("start "+start+", end "+end+
+              ", length "+csq.length());
+    }
+    if(start == end) {
+      return this;
+    }
+    flattened = null;
+    int last = nrPieces-1;
+    if(last >= 0 && pieces[last] == csq &&
+       pieceStarts[last] + pieceLength(last) == start) {
+      // continues the last piece
+      pieceEnds[last] += end - start;
+    } else if(csq instanceof String && end - start >= MIN_SHARED_LENGTH) {
+      addPiece(csq, start, end);
+      buffer = null;
+    } else {
+      if(buffer == null) {
+        buffer = new StringBuilder(Math.max(end - start, 256));
+        addPiece(buffer, 0, 0);
+      }
+      buffer.append(csq, start, end);
+      pieceEnds[nrPieces-1] += end - start;
+    }
+    length += end - start;
+    return this;
+  }
+
+  private void addPiece(CharSequence csq, int start, int end) {
+    if(nrPieces == pieces.length) {
+      int newSize = nrPieces + (nrPieces >> 1);
+      pieces = Arrays.copyOf(pieces, newSize);
+      pieceStarts = Arrays.copyOf(pieceStarts, newSize);
+      pieceEnds = Arrays.copyOf(pieceEnds, newSize);
+    }
+    pieces[nrPieces] = csq;
+    pieceStarts[nrPieces] = start;
+    pieceEnds[nrPieces] = length + end - start;
+    nrPieces++;
+  }
+
+  public VirtualText append(char c) {
+    return append(String.valueOf(c));
+  }
+
+  private int pieceLength(int piece) {
+    return pieceEnds[piece] - (piece == 0 ? 0 : pieceEnds[piece-1]);
+  }
+
+  /**
+   * The number of pieces the text consists of.
+   */
+  public int getNumberOfPieces() {
+    return nrPieces;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public char charAt(int index) {
+    if(index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("index "+index+", length "+length);
+    }
+    String text = flattened;
+    if(text != null) {
+      return text.charAt(index);
+    }
+    // the first piece that ends after index
+    int piece = Arrays.binarySearch(pieceEnds, 0, nrPieces, index);
+    piece = piece < 0 ? -piece-1 : piece+1;
+    int pieceStart = piece == 0 ? 0 : pieceEnds[piece-1];
+    return pieces[piece].charAt(pieceStarts[piece] + index - pieceStart);
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    return toString().substring(start, end);
+  }
+
+  /**
+   * Copy the text to a String, this is only done once.
+   */
+  @Override
+  public String toString() {
+    String text = flattened;
+    if(text == null) {
+      char[] chars = new char[length];
+      int offset = 0;
+      for(int i = 0; i < nrPieces; i++) {
+        int pieceLength = pieceEnds[i] - offset;
+        CharSequence piece = pieces[i];
+        int start = pieceStarts[i];
+        if(piece instanceof String) {
+          ((String)piece).getChars(start, start + pieceLength, chars, offset);
+        } else if(piece instanceof StringBuilder) {
+          ((StringBuilder)piece).getChars(start, start + pieceLength, chars, offset);
+        } else {
+          for(int k = 0; k < pieceLength; k++) {
+            chars[offset+k] = piece.charAt(start+k);
+          }
+        }
+        offset += pieceLength;
+      }
+      text = new String(chars);
+      flattened = text;
+    }
+    return text;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  BenchmarkVirtualDocumentReuse.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.IndirectLanguageAnalyserPR;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.util.InvalidOffsetException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the time the IndirectLanguageAnalyserPR needs for many short
+ * documents when a new virtual document is created and deleted for each
+ * document, when a single virtual document is reused and when lightweight
+ * virtual documents are used.
+ * <p>
+ * Run with the number of documents and the number of words per document
+ * as optional arguments, e.g. using "ant benchmark".
+ */
+public class BenchmarkVirtualDocumentReuse {
+
+  /**
+   * A trivial analyser that adds a Word annotation for every sequence of
+   * non-space characters.
+   */
+  public static class WordAnalyser extends AbstractLanguageAnalyser {
+    public static final long serialVersionUID = 1L;
+    @Override
+    public void execute() throws ExecutionException {
+      String text = document.getContent().toString();
+      AnnotationSet outputAS = document.getAnnotations("Words");
+      int start = -1;
+      try {
+        for(int i = 0; i <= text.length(); i++) {
+          boolean space = i == text.length() || Character.isWhitespace(text.charAt(i));
+          if(space && start >= 0) {
+            outputAS.add((long)start, (long)i, "Word", Factory.newFeatureMap());
+            start = -1;
+          } else if(!space && start < 0) {
+            start = i;
+          }
+        }
+      } catch (InvalidOffsetException ex) {
+        throw new ExecutionException(ex);
+      }
+    }
+  }
+
+  private static final String[] WORDS = {
+    "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta"
+  };
+
+  private static List<Document> makeDocuments(int nrDocs, int nrWords)
+          throws Exception {
+    List<Document> docs = new ArrayList<Document>();
+    for(int d = 0; d < nrDocs; d++) {
+      StringBuilder sb = new StringBuilder();
+      for(int w = 0; w < nrWords; w++) {
+        sb.append(WORDS[(d+w*7) % WORDS.length]).append(' ');
+      }
+      Document doc = Factory.newDocument(sb.toString());
+      AnnotationSet tokens = doc.getAnnotations();
+      int offset = 0;
+      for(int w = 0; w < nrWords; w++) {
+        int len = WORDS[(d+w*7) % WORDS.length].length();
+        FeatureMap fm = Factory.newFeatureMap();
+        fm.put("string", WORDS[(d+w*7) % WORDS.length].toUpperCase());
+        tokens.add((long)offset, (long)(offset+len), "Token", fm);
+        offset += len+1;
+      }
+      doc.setName("doc"+d);
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  private static long run(List<Document> docs, boolean reuse,
+          boolean lightweight) throws Exception {
+    IndirectLanguageAnalyserPR ila = new IndirectLanguageAnalyserPR();
+    List<String> specs = new ArrayList<String>();
+    specs.add("Token.string");
+    ila.setAnnotationSpecifications(specs);
+    FeatureMap po = Factory.newFeatureMap();
+    po.put("separator", " ");
+    ila.setProcessingOptions(po);
+    List<String> mapBack = new ArrayList<String>();
+    mapBack.add("Words");
+    ila.setMapBackAnnotations(mapBack);
+    ila.setLanguageAnalyser(new WordAnalyser());
+    ila.setReuseVirtualDocument(reuse);
+    ila.setLightweightVirtualDocument(lightweight);
+    ila.startup();
+    long start = System.nanoTime();
+    for(Document doc : docs) {
+      ila.setDocument(doc);
+      ila.execute();
+    }
+    long time = System.nanoTime() - start;
+    ila.controllerExecutionFinished(null);
+    return time;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int nrDocs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int nrWords = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    // no user configuration or plugins are needed for this
+    Gate.runInSandbox(true);
+    Gate.init();
+    List<Document> docs = makeDocuments(nrDocs, nrWords);
+    // warm up and check that all variants create the same annotations
+    run(docs.subList(0, Math.min(1000, nrDocs)), false, false);
+    run(docs.subList(0, Math.min(1000, nrDocs)), true, false);
+    run(docs.subList(0, Math.min(1000, nrDocs)), false, true);
+    int words = 0;
+    for(Document doc : docs) {
+      words += doc.getAnnotations("Words").size();
+    }
+    if(words != 3*Math.min(1000, nrDocs)*nrWords) {
+      throw new RuntimeException("Unexpected number of Word annotations: "+words);
+    }
+    for(int round = 0; round < 3; round++) {
+      long create = run(docs, false, false);
+      long reuse = run(docs, true, false);
+      long lightweight = run(docs, false, true);
+      System.out.println("Round "+round+": "+nrDocs+" documents, create/delete: "+
+              (create/1000000)+"ms, reuse: "+(reuse/1000000)+"ms, lightweight: "+
+              (lightweight/1000000)+"ms");
+    }
+  }
+}
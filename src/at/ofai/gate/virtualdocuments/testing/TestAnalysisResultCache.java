@@ -0,0 +1,344 @@
+/*
+ *  TestAnalysisResultCache.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.IndirectLanguageAnalyserPR;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.LanguageAnalyser;
+import gate.Utils;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.SerialAnalyserController;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Tests for caching the results of the language analyser of the
+ * {@link IndirectLanguageAnalyserPR}: annotations restored from the cache,
+ * in memory or from the cache directory, must be the same as the ones the
+ * analyser created, including feature values of all kinds, and must not be
+ * used once the configuration of the analyser has changed.
+ *
+ * @author Johann Petrak
+ */
+public class TestAnalysisResultCache {
+
+  /**
+   * An analyser that annotates each word of the document with features of
+   * different types and counts how often it is run.
+   */
+  @CreoleResource(name = "TestAnalysisResultCache word analyser")
+  public static class WordAnalyser extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    static int calls = 0;
+    private String marker = "";
+    @RunTime
+    @Optional
+    @CreoleParameter(defaultValue = "")
+    public void setMarker(String marker) {
+      this.marker = marker;
+    }
+    public String getMarker() {
+      return marker;
+    }
+    @Override
+    public void execute() throws ExecutionException {
+      calls++;
+      String text = document.getContent().toString();
+      boolean addObject = document.getFeatures().containsKey("addObject");
+      AnnotationSet words = document.getAnnotations("Words");
+      int start = -1;
+      for(int i = 0; i <= text.length(); i++) {
+        boolean space = i == text.length() || text.charAt(i) == ' ';
+        if(space && start >= 0) {
+          String word = text.substring(start, i);
+          FeatureMap features = Factory.newFeatureMap();
+          features.put("string", word);
+          features.put("length", word.length());
+          features.put("start", Long.valueOf(start));
+          features.put("score", 1.0/word.length());
+          features.put("first", start == 0);
+          features.put("none", null);
+          features.put("letters", new ArrayList<String>(Arrays.asList(word.split(""))));
+          features.put("date", new Date(start));
+          features.put(7, "not a string key");
+          if(start == 0) {
+            // too long to be written as a simple string
+            StringBuilder longString = new StringBuilder();
+            while(longString.length() < 100000) {
+              longString.append(word);
+            }
+            features.put("long", longString.toString());
+          }
+          if(addObject) {
+            features.put("object", new Object());
+          }
+          Utils.addAnn(words, start, i, "Word", features);
+          start = -1;
+        } else if(!space && start < 0) {
+          start = i;
+        }
+      }
+      Utils.addAnn(document.getAnnotations(), 0, text.length(), "Sentence",
+              Utils.featureMap("marker", marker));
+    }
+  }
+
+  private static File cacheDir;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    if(!Gate.isInitialised()) {
+      Gate.init();
+    }
+    Gate.getCreoleRegister().registerComponent(WordAnalyser.class);
+    Gate.getCreoleRegister().registerComponent(IndirectLanguageAnalyserPR.class);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    WordAnalyser.calls = 0;
+    cacheDir = File.createTempFile("vdcache", "");
+    assertTrue(cacheDir.delete());
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = cacheDir.listFiles();
+    if(files != null) {
+      for(File file : files) {
+        file.delete();
+      }
+    }
+    cacheDir.delete();
+  }
+
+  private static Document newDocument(String name) throws Exception {
+    String text = "One small text with some words in it .";
+    Document doc = Factory.newDocument(text);
+    doc.setName(name);
+    int start = 0;
+    for(String word : text.split(" ")) {
+      Utils.addAnn(doc.getAnnotations(), start, start+word.length(), "Token",
+              Utils.featureMap("string", word.toLowerCase()));
+      start += word.length()+1;
+    }
+    return doc;
+  }
+
+  private static IndirectLanguageAnalyserPR newAnalyser(int cacheSize,
+          File directory) throws Exception {
+    return newAnalyser(cacheSize, directory, (WordAnalyser)
+            Factory.createResource(WordAnalyser.class.getName()));
+  }
+
+  private static IndirectLanguageAnalyserPR newAnalyser(int cacheSize,
+          File directory, LanguageAnalyser analyser) throws Exception {
+    IndirectLanguageAnalyserPR pr = (IndirectLanguageAnalyserPR)
+            Factory.createResource(IndirectLanguageAnalyserPR.class.getName());
+    pr.setLanguageAnalyser(analyser);
+    pr.setAnnotationSpecifications(Arrays.asList("Token.string"));
+    FeatureMap options = Factory.newFeatureMap();
+    options.put("separator", " ");
+    pr.setProcessingOptions(options);
+    pr.setMapBackAnnotations(Arrays.asList("Words", ".Sentence"));
+    pr.setCacheSize(cacheSize);
+    if(directory != null) {
+      pr.setCacheDirectoryUrl(directory.toURI().toURL());
+    }
+    return pr;
+  }
+
+  private static void run(IndirectLanguageAnalyserPR pr, Document... docs)
+          throws ExecutionException {
+    pr.controllerExecutionStarted(null);
+    for(Document doc : docs) {
+      pr.setDocument(doc);
+      pr.execute();
+    }
+    pr.controllerExecutionFinished(null);
+  }
+
+  private static void delete(IndirectLanguageAnalyserPR pr) {
+    Factory.deleteResource(pr.getLanguageAnalyser());
+    Factory.deleteResource(pr);
+  }
+
+  private static List<Annotation> sorted(AnnotationSet set) {
+    List<Annotation> anns = new ArrayList<Annotation>(set);
+    Collections.sort(anns, new gate.util.OffsetComparator());
+    return anns;
+  }
+
+  private static void assertSameAnnotations(AnnotationSet expected,
+          AnnotationSet actual) {
+    List<Annotation> expectedAnns = sorted(expected);
+    List<Annotation> actualAnns = sorted(actual);
+    assertEquals(expectedAnns.size(), actualAnns.size());
+    for(int i = 0; i < expectedAnns.size(); i++) {
+      Annotation e = expectedAnns.get(i);
+      Annotation a = actualAnns.get(i);
+      assertEquals(e.getType(), a.getType());
+      assertEquals(e.getStartNode().getOffset(), a.getStartNode().getOffset());
+      assertEquals(e.getEndNode().getOffset(), a.getEndNode().getOffset());
+      assertEquals(e.getFeatures().keySet(), a.getFeatures().keySet());
+      for(Object key : e.getFeatures().keySet()) {
+        assertEquals("feature "+key, e.getFeatures().get(key),
+                a.getFeatures().get(key));
+      }
+    }
+  }
+
+  private static void assertSameResult(Document expected, Document actual) {
+    assertFalse(expected.getAnnotations("Words").isEmpty());
+    assertSameAnnotations(expected.getAnnotations("Words"),
+            actual.getAnnotations("Words"));
+    assertSameAnnotations(expected.getAnnotations().get("Sentence"),
+            actual.getAnnotations().get("Sentence"));
+  }
+
+  @Test
+  public void testMemoryCache() throws Exception {
+    IndirectLanguageAnalyserPR pr = newAnalyser(10, null);
+    Document doc1 = newDocument("doc1");
+    Document doc2 = newDocument("doc2");
+    Document doc3 = newDocument("doc3");
+    doc3.getAnnotations().get("Token").iterator().next()
+            .getFeatures().put("string", "another");
+    try {
+      run(pr, doc1, doc2, doc3);
+      // doc2 has the same virtual text as doc1, doc3 does not
+      assertEquals(2, WordAnalyser.calls);
+      assertSameResult(doc1, doc2);
+    } finally {
+      Factory.deleteResource(doc1);
+      Factory.deleteResource(doc2);
+      Factory.deleteResource(doc3);
+      delete(pr);
+    }
+  }
+
+  @Test
+  public void testDirectoryCache() throws Exception {
+    IndirectLanguageAnalyserPR pr1 = newAnalyser(0, cacheDir);
+    IndirectLanguageAnalyserPR pr2 = newAnalyser(0, cacheDir);
+    Document doc1 = newDocument("doc1");
+    Document doc2 = newDocument("doc2");
+    try {
+      run(pr1, doc1);
+      assertEquals(1, WordAnalyser.calls);
+      assertEquals(1, cacheDir.listFiles().length);
+      // a new PR only finds the annotations in the cache directory
+      run(pr2, doc2);
+      assertEquals(1, WordAnalyser.calls);
+      assertSameResult(doc1, doc2);
+    } finally {
+      Factory.deleteResource(doc1);
+      Factory.deleteResource(doc2);
+      delete(pr1);
+      delete(pr2);
+    }
+  }
+
+  @Test
+  public void testValueNotSerializable() throws Exception {
+    IndirectLanguageAnalyserPR pr = newAnalyser(10, cacheDir);
+    Document doc1 = newDocument("doc1");
+    Document doc2 = newDocument("doc2");
+    // the virtual documents get the features of the original documents
+    doc1.getFeatures().put("addObject", Boolean.TRUE);
+    doc2.getFeatures().put("addObject", Boolean.TRUE);
+    try {
+      run(pr, doc1, doc2);
+      // nothing could be cached, so the analyser has to run again
+      assertEquals(2, WordAnalyser.calls);
+      assertEquals(0, cacheDir.listFiles().length);
+      assertEquals(doc1.getAnnotations("Words").size(),
+              doc2.getAnnotations("Words").size());
+    } finally {
+      Factory.deleteResource(doc1);
+      Factory.deleteResource(doc2);
+      delete(pr);
+    }
+  }
+
+  @Test
+  public void testCacheVersion() throws Exception {
+    IndirectLanguageAnalyserPR pr1 = newAnalyser(0, cacheDir);
+    IndirectLanguageAnalyserPR pr2 = newAnalyser(0, cacheDir);
+    Document doc1 = newDocument("doc1");
+    Document doc2 = newDocument("doc2");
+    try {
+      run(pr1, doc1);
+      // e.g. a grammar file of the analyser has been edited
+      pr2.setCacheVersion("2");
+      run(pr2, doc2);
+      assertEquals(2, WordAnalyser.calls);
+    } finally {
+      Factory.deleteResource(doc1);
+      Factory.deleteResource(doc2);
+      delete(pr1);
+      delete(pr2);
+    }
+  }
+
+  @Test
+  public void testNestedAnalyserParameters() throws Exception {
+    WordAnalyser analyser = (WordAnalyser)
+            Factory.createResource(WordAnalyser.class.getName());
+    SerialAnalyserController controller = (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+    controller.add(analyser);
+    // only needed for the name, the controller runs on the virtual documents
+    Corpus corpus = Factory.newCorpus("nested");
+    controller.setCorpus(corpus);
+    IndirectLanguageAnalyserPR pr = newAnalyser(0, cacheDir, controller);
+    Document doc1 = newDocument("doc1");
+    Document doc2 = newDocument("doc2");
+    Document doc3 = newDocument("doc3");
+    try {
+      run(pr, doc1);
+      analyser.setMarker("changed");
+      run(pr, doc2);
+      // a parameter of a PR of the controller is part of the key
+      assertEquals(2, WordAnalyser.calls);
+      assertEquals("changed", doc2.getAnnotations().get("Sentence")
+              .iterator().next().getFeatures().get("marker"));
+      run(pr, doc3);
+      assertEquals(2, WordAnalyser.calls);
+      assertSameResult(doc2, doc3);
+    } finally {
+      Factory.deleteResource(doc1);
+      Factory.deleteResource(doc2);
+      Factory.deleteResource(doc3);
+      Factory.deleteResource(pr);
+      Factory.deleteResource(controller);
+      Factory.deleteResource(corpus);
+      Factory.deleteResource(analyser);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ *  TestComposeOffsetMapping.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.AnnotatedDocumentTransformer;
+import at.ofai.gate.virtualdocuments.OffsetMapping;
+import at.ofai.gate.virtualdocuments.TransformResult;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.util.GateRuntimeException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.naming.InvalidNameException;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Tests for composing the offset mappings of a chain of virtual documents:
+ * the composed mapping must map every offset of the innermost virtual
+ * document like mapping it back one level at a time.
+ *
+ * @author Johann Petrak
+ */
+public class TestComposeOffsetMapping {
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    if(!Gate.isInitialised()) {
+      Gate.init();
+    }
+  }
+
+  // Random words, some of them annotated with the given type. If a string
+  // feature is given, it is set to a value that differs in length from the
+  // word for some of them.
+  private static void annotateWords(Random random, Document doc,
+          String type, String feature) {
+    String text = doc.getContent().toString();
+    int start = 0;
+    for(int i = 0; i <= text.length(); i++) {
+      if(i == text.length() || text.charAt(i) == ' ') {
+        if(i > start && random.nextInt(4) > 0) {
+          FeatureMap features = Factory.newFeatureMap();
+          if(feature != null) {
+            String word = text.substring(start, i);
+            features.put(feature,
+                    random.nextBoolean() ? word : word.substring(1)+"__");
+          }
+          Utils.addAnn(doc.getAnnotations(), start, i, type, features);
+        }
+        start = i+1;
+      }
+    }
+  }
+
+  private static String randomText(Random random) {
+    StringBuilder text = new StringBuilder();
+    int n = 1+random.nextInt(300);
+    for(int i = 0; i < n; i++) {
+      int length = 1+random.nextInt(8);
+      for(int k = 0; k < length; k++) {
+        text.append((char)('a'+random.nextInt(26)));
+      }
+      text.append(' ');
+    }
+    return text.toString();
+  }
+
+  private static TransformResult transform(Document doc, List<String> specs,
+          String separator, boolean compressed) throws InvalidNameException {
+    FeatureMap options = Factory.newFeatureMap();
+    options.put("separator", separator);
+    options.put("stringChunks", "true");
+    AnnotatedDocumentTransformer adt =
+            new AnnotatedDocumentTransformer(specs, options, true, true);
+    adt.setCompressOffsetMaps(compressed);
+    return adt.transform(doc, "");
+  }
+
+  @Test
+  public void testComposeLikeTwoLevels() throws Exception {
+    Random random = new Random(1);
+    int checked = 0;
+    for(int i = 0; i < 100; i++) {
+      Document original = Factory.newDocument(randomText(random));
+      Document virtual1 = null;
+      try {
+        // @STRING copies the text between the annotations, so the mappings
+        // have copied as well as constant ranges, and copied ranges of the
+        // inner mapping start in the middle of those of the outer one
+        annotateWords(random, original, "Token", "string");
+        TransformResult result1 = transform(original,
+                Arrays.asList("Token.string", "@STRING"), " ",
+                random.nextBoolean());
+        virtual1 = Factory.newDocument(result1.getText());
+        annotateWords(random, virtual1, "Word", null);
+        TransformResult result2 = transform(virtual1,
+                Arrays.asList("Word", "@STRING"), " | ", random.nextBoolean());
+
+        OffsetMapping inner = result2.getBackwardOffsetMap();
+        OffsetMapping outer = result1.getBackwardOffsetMap();
+        OffsetMapping composed = OffsetMapping.compose(inner, outer);
+        assertTrue(composed.isCompressed());
+        assertTrue(composed.isFrozen());
+        assertEquals(inner.size(), composed.size());
+        for(int p = 0; p < inner.size(); p++) {
+          int from = inner.getFrom(p);
+          int to = inner.getTo(p);
+          if(to <= from) {
+            // text that only exists in the intermediate document
+            assertEquals("empty range at "+p,
+                    composed.getFrom(p), composed.getTo(p));
+          } else if(to <= outer.size()) {
+            assertEquals("from of "+p, outer.getFrom(from), composed.getFrom(p));
+            assertEquals("to of "+p, outer.getTo(to-1), composed.getTo(p));
+            checked++;
+          }
+        }
+      } finally {
+        Factory.deleteResource(original);
+        if(virtual1 != null) {
+          Factory.deleteResource(virtual1);
+        }
+      }
+    }
+    assertTrue(checked > 0);
+  }
+
+  @Test(expected = GateRuntimeException.class)
+  public void testComposeDifferentKinds() throws Exception {
+    Document doc = Factory.newDocument("some words here");
+    try {
+      Utils.addAnn(doc.getAnnotations(), 0, 4, "Token", Factory.newFeatureMap());
+      TransformResult result = transform(doc, Arrays.asList("Token"), " ", true);
+      OffsetMapping.compose(result.getBackwardOffsetMap(),
+              result.getForwardOffsetMap());
+    } finally {
+      Factory.deleteResource(doc);
+    }
+  }
+}
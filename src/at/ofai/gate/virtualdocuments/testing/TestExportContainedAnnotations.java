@@ -0,0 +1,185 @@
+/*
+ *  TestExportContainedAnnotations.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.ExportContainedAnnotationsPR;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.util.OffsetComparator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Tests for the ExportContainedAnnotationsPR: the line written for each
+ * containing annotation must list the same contained annotations as
+ * AnnotationSet.get(type, from, to), in offset order, also if the
+ * containing annotations overlap or are nested.
+ *
+ * @author Johann Petrak
+ */
+public class TestExportContainedAnnotations {
+
+  private static File outDir;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    if(!Gate.isInitialised()) {
+      Gate.init();
+    }
+    Gate.getCreoleRegister().registerComponent(ExportContainedAnnotationsPR.class);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    outDir = File.createTempFile("export", "");
+    assertTrue(outDir.delete());
+    assertTrue(outDir.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = outDir.listFiles();
+    if(files != null) {
+      for(File file : files) {
+        file.delete();
+      }
+    }
+    outDir.delete();
+  }
+
+  // Random annotations of the type, some of them empty, with the id as
+  // the value of the feature "id".
+  private static void addRandomAnnotations(Random random, Document doc,
+          String type, int n, int maxLength) {
+    int length = Utils.length(doc);
+    AnnotationSet set = doc.getAnnotations();
+    for(int i = 0; i < n; i++) {
+      int start = random.nextInt(length+1);
+      int end = Math.min(length, start+random.nextInt(maxLength+1));
+      Integer id = Utils.addAnn(set, start, end, type, Factory.newFeatureMap());
+      set.get(id).getFeatures().put("id", String.valueOf(id));
+    }
+  }
+
+  private static final Comparator<Annotation> OFFSET_ID_ORDER =
+          new Comparator<Annotation>() {
+    public int compare(Annotation a1, Annotation a2) {
+      int c = new OffsetComparator().compare(a1, a2);
+      return c != 0 ? c : a1.getId().compareTo(a2.getId());
+    }
+  };
+
+  // the line the PR writes for the annotations AnnotationSet.get returns,
+  // or null if it writes none
+  private static String expectedLine(AnnotationSet contained) {
+    if(contained.isEmpty()) {
+      return null;
+    }
+    List<Annotation> anns = new ArrayList<Annotation>(contained);
+    Collections.sort(anns, OFFSET_ID_ORDER);
+    StringBuilder line = new StringBuilder();
+    for(Annotation ann : anns) {
+      line.append(ann.getFeatures().get("id")).append(' ');
+    }
+    return line.toString();
+  }
+
+  private List<String> export(Document doc, String containingType)
+          throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("containedAnnotationTypeName", "Token");
+    params.put("directoryUrl", outDir.toURI().toURL());
+    ExportContainedAnnotationsPR pr = (ExportContainedAnnotationsPR)
+            Factory.createResource(ExportContainedAnnotationsPR.class.getName(),
+            params);
+    try {
+      pr.setContainingAnnotationTypeName(containingType);
+      pr.setFeatureName("id");
+      pr.setFileNameSuffix(".txt");
+      pr.controllerExecutionStarted(null);
+      pr.setDocument(doc);
+      pr.execute();
+      pr.controllerExecutionFinished(null);
+    } finally {
+      Factory.deleteResource(pr);
+    }
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(new File(outDir, doc.getName()+".txt")),
+            "UTF-8"));
+    try {
+      String line;
+      while((line = in.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  @Test
+  public void testSameAsAnnotationSetGet() throws Exception {
+    Random random = new Random(1);
+    for(int i = 0; i < 20; i++) {
+      StringBuilder text = new StringBuilder();
+      int length = 1+random.nextInt(2000);
+      for(int k = 0; k < length; k++) {
+        text.append((char)('a'+random.nextInt(26)));
+      }
+      Document doc = Factory.newDocument(text.toString());
+      doc.setName("doc"+i);
+      try {
+        addRandomAnnotations(random, doc, "Token", random.nextInt(300), 10);
+        // nested and overlapping containing annotations of all lengths
+        addRandomAnnotations(random, doc, "Sentence", random.nextInt(50),
+                random.nextBoolean() ? 50 : length);
+        AnnotationSet tokens = doc.getAnnotations().get("Token");
+        List<Annotation> sentences =
+                new ArrayList<Annotation>(doc.getAnnotations().get("Sentence"));
+        Collections.sort(sentences, new OffsetComparator());
+        List<String> expected = new ArrayList<String>();
+        for(Annotation sentence : sentences) {
+          String line = expectedLine(tokens.get(
+                  sentence.getStartNode().getOffset(),
+                  sentence.getEndNode().getOffset()));
+          if(line != null) {
+            expected.add(line);
+          }
+        }
+        assertEquals("document "+i, expected, export(doc, "Sentence"));
+
+        expected.clear();
+        String line = expectedLine(tokens.get(0L, Utils.lengthLong(doc)));
+        if(line != null) {
+          expected.add(line);
+        }
+        assertEquals("whole document "+i, expected, export(doc, ""));
+      } finally {
+        Factory.deleteResource(doc);
+      }
+    }
+  }
+}
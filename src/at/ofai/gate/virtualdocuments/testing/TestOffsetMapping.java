@@ -0,0 +1,169 @@
+/*
+ *  TestOffsetMapping.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.OffsetMapping;
+import java.util.Random;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Tests for the storage of offset mappings: a compressed mapping must map
+ * every offset and range exactly like a mapping that stores the offsets
+ * individually.
+ *
+ * @author Johann Petrak
+ */
+public class TestOffsetMapping {
+
+  // A mapping that lets the test add ranges directly, including ranges
+  // that overwrite mapped offsets or leave gaps.
+  static class RangeMapping extends OffsetMapping {
+    RangeMapping(boolean compressed) {
+      super(compressed);
+    }
+    public void addMapping(int sourceOffset, int sourceLength,
+            int targetLength, boolean isCopy) {
+      throw new UnsupportedOperationException();
+    }
+    void range(int pos, int length, int from, int to) {
+      fillRange(pos, length, from, to);
+    }
+    void copy(int pos, int length, int from) {
+      fillCopyRange(pos, length, from);
+    }
+  }
+
+  // Add the same random ranges to both mappings. If sloppy is true, some
+  // ranges overwrite already mapped offsets or start after a gap.
+  private static void addRandomRanges(Random random, boolean sloppy,
+          RangeMapping... mappings) {
+    int pos = 0;
+    int target = 0;
+    int n = 1+random.nextInt(200);
+    for(int i = 0; i < n; i++) {
+      int length = 1+random.nextInt(random.nextBoolean() ? 3 : 40);
+      int start = pos;
+      if(sloppy && random.nextInt(5) == 0) {
+        start = Math.max(0, pos-random.nextInt(30));
+      } else if(sloppy && random.nextInt(10) == 0) {
+        start = pos+1+random.nextInt(5);
+      }
+      boolean copy = random.nextBoolean();
+      int targetLength = random.nextInt(5);
+      for(RangeMapping mapping : mappings) {
+        if(copy) {
+          mapping.copy(start, length, target);
+        } else {
+          mapping.range(start, length, target, target+targetLength);
+        }
+      }
+      target += copy ? length : targetLength;
+      pos = Math.max(pos, start+length);
+    }
+  }
+
+  private static void assertSameMapping(OffsetMapping expected,
+          OffsetMapping actual) {
+    assertEquals("size", expected.size(), actual.size());
+    for(int i = 0; i < expected.size(); i++) {
+      assertEquals("from of "+i, expected.getFrom(i), actual.getFrom(i));
+      assertEquals("to of "+i, expected.getTo(i), actual.getTo(i));
+    }
+  }
+
+  @Test
+  public void testCompressedMapsLikeArray() {
+    Random random = new Random(1);
+    for(int i = 0; i < 200; i++) {
+      RangeMapping array = new RangeMapping(false);
+      RangeMapping segments = new RangeMapping(true);
+      addRandomRanges(random, false, array, segments);
+      assertFalse(array.isCompressed());
+      assertTrue(segments.isCompressed());
+      assertSameMapping(array, segments);
+    }
+  }
+
+  @Test
+  public void testOverwriteAndGapsLikeArray() {
+    Random random = new Random(2);
+    for(int i = 0; i < 200; i++) {
+      RangeMapping array = new RangeMapping(false);
+      RangeMapping segments = new RangeMapping(true);
+      addRandomRanges(random, true, array, segments);
+      assertSameMapping(array, segments);
+    }
+  }
+
+  @Test
+  public void testOverwriteInsideSegment() {
+    RangeMapping array = new RangeMapping(false);
+    RangeMapping segments = new RangeMapping(true);
+    for(RangeMapping mapping : new RangeMapping[] { array, segments }) {
+      mapping.copy(0, 20, 100);
+      mapping.range(20, 10, 120, 125);
+      // overwrite the middle of the copy, the rest of it must remain
+      mapping.range(5, 3, 7, 9);
+      // overwrite across the end of the copy and into the constant range
+      mapping.copy(18, 4, 50);
+    }
+    assertSameMapping(array, segments);
+    assertEquals(104, segments.getFrom(4));
+    assertEquals(7, segments.getFrom(6));
+    assertEquals(108, segments.getFrom(8));
+    assertEquals(51, segments.getFrom(19));
+    assertEquals(120, segments.getFrom(22));
+    assertEquals(125, segments.getTo(29));
+  }
+
+  @Test
+  public void testMapRanges() {
+    Random random = new Random(3);
+    for(int i = 0; i < 100; i++) {
+      RangeMapping array = new RangeMapping(false);
+      RangeMapping segments = new RangeMapping(true);
+      addRandomRanges(random, false, array, segments);
+      int size = array.size();
+      // increasing starts with ends close by and far away, so the search
+      // for the end segment covers short and long distances
+      int n = 1+random.nextInt(100);
+      int[] starts = new int[n];
+      int[] ends = new int[n];
+      int start = 0;
+      for(int k = 0; k < n; k++) {
+        start = Math.min(size-1, start+random.nextInt(20));
+        starts[k] = start;
+        int maxLength = random.nextBoolean() ? 5 : size;
+        ends[k] = Math.min(size, start+random.nextInt(maxLength+1));
+      }
+      int[] expectedStarts = new int[n];
+      int[] expectedEnds = new int[n];
+      int[] newStarts = new int[n];
+      int[] newEnds = new int[n];
+      array.mapRanges(starts, ends, n, expectedStarts, expectedEnds);
+      segments.mapRanges(starts, ends, n, newStarts, newEnds);
+      assertArrayEquals(expectedStarts, newStarts);
+      assertArrayEquals(expectedEnds, newEnds);
+      for(int k = 0; k < n; k++) {
+        assertEquals(array.getFrom(starts[k]), newStarts[k]);
+        assertEquals(array.getTo(Math.max(ends[k]-1, 0)), newEnds[k]);
+      }
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testOffsetOutOfRange() {
+    RangeMapping segments = new RangeMapping(true);
+    segments.copy(0, 10, 0);
+    segments.getFrom(10);
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ *  TestPipelined.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.IndirectLanguageAnalyserPR;
+import gate.Annotation;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.SerialAnalyserController;
+import gate.creole.metadata.CreoleResource;
+import gate.util.OffsetComparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Tests for the pipelined mode of the {@link IndirectLanguageAnalyserPR}:
+ * once the controller has finished, every document of the corpus must have
+ * the same annotations as when the documents are processed one at a time,
+ * also if several documents are analysed in parallel.
+ *
+ * @author Johann Petrak
+ */
+public class TestPipelined {
+
+  /**
+   * An analyser that annotates each word of the document.
+   */
+  @CreoleResource(name = "TestPipelined word analyser")
+  public static class WordAnalyser extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    @Override
+    public void execute() throws ExecutionException {
+      String text = document.getContent().toString();
+      int start = -1;
+      for(int i = 0; i <= text.length(); i++) {
+        boolean space = i == text.length() || text.charAt(i) == ' ';
+        if(space && start >= 0) {
+          Utils.addAnn(document.getAnnotations("Words"), start, i, "Word",
+                  Utils.featureMap("string", text.substring(start, i)));
+          start = -1;
+        } else if(!space && start < 0) {
+          start = i;
+        }
+      }
+    }
+  }
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    if(!Gate.isInitialised()) {
+      Gate.init();
+    }
+    Gate.getCreoleRegister().registerComponent(WordAnalyser.class);
+    Gate.getCreoleRegister().registerComponent(IndirectLanguageAnalyserPR.class);
+  }
+
+  private static Corpus newCorpus(int nrDocuments) throws Exception {
+    Corpus corpus = Factory.newCorpus("TestPipelined");
+    for(int d = 0; d < nrDocuments; d++) {
+      StringBuilder text = new StringBuilder();
+      for(int w = 0; w < 50; w++) {
+        text.append("w").append((d*w) % 97).append("  ");
+      }
+      Document doc = Factory.newDocument(text.toString());
+      int start = 0;
+      for(String word : text.toString().trim().split("  ")) {
+        Utils.addAnn(doc.getAnnotations(), start, start+word.length(),
+                "Token", Utils.featureMap("string", word.toUpperCase()));
+        start += word.length()+2;
+      }
+      corpus.add(doc);
+    }
+    return corpus;
+  }
+
+  private static void deleteCorpus(Corpus corpus) {
+    for(Document doc : new ArrayList<Document>(corpus)) {
+      Factory.deleteResource(doc);
+    }
+    Factory.deleteResource(corpus);
+  }
+
+  private static IndirectLanguageAnalyserPR newAnalyser() throws Exception {
+    IndirectLanguageAnalyserPR pr = (IndirectLanguageAnalyserPR)
+            Factory.createResource(IndirectLanguageAnalyserPR.class.getName());
+    pr.setLanguageAnalyser((WordAnalyser)
+            Factory.createResource(WordAnalyser.class.getName()));
+    pr.setAnnotationSpecifications(Arrays.asList("Token.string"));
+    FeatureMap options = Factory.newFeatureMap();
+    options.put("separator", " ");
+    pr.setProcessingOptions(options);
+    pr.setMapBackAnnotations(Arrays.asList("Words"));
+    return pr;
+  }
+
+  // the words mapped back to each document, as offsets and strings
+  private static List<String> run(SerialAnalyserController controller,
+          Corpus corpus) throws Exception {
+    controller.setCorpus(corpus);
+    controller.execute();
+    List<String> result = new ArrayList<String>();
+    for(Document doc : corpus) {
+      List<Annotation> words =
+              new ArrayList<Annotation>(doc.getAnnotations("Words"));
+      Collections.sort(words, new OffsetComparator());
+      StringBuilder line = new StringBuilder();
+      for(Annotation word : words) {
+        line.append(word.getStartNode().getOffset()).append('-')
+            .append(word.getEndNode().getOffset()).append(':')
+            .append(word.getFeatures().get("string")).append(' ');
+      }
+      result.add(line.toString());
+    }
+    return result;
+  }
+
+  private static SerialAnalyserController newController() throws Exception {
+    return (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+  }
+
+  @Test
+  public void testSameAsNotPipelined() throws Exception {
+    IndirectLanguageAnalyserPR pr = newAnalyser();
+    SerialAnalyserController controller = newController();
+    Corpus corpus1 = newCorpus(50);
+    Corpus corpus2 = newCorpus(50);
+    Corpus corpus3 = newCorpus(50);
+    try {
+      controller.add(pr);
+      List<String> expected = run(controller, corpus1);
+      assertFalse(expected.get(0).isEmpty());
+      pr.setPipelined(true);
+      assertEquals(expected, run(controller, corpus2));
+      pr.setNumberOfThreads(4);
+      assertEquals(expected, run(controller, corpus3));
+    } finally {
+      deleteCorpus(corpus1);
+      deleteCorpus(corpus2);
+      deleteCorpus(corpus3);
+      Factory.deleteResource(controller);
+      Factory.deleteResource(pr.getLanguageAnalyser());
+      Factory.deleteResource(pr);
+    }
+  }
+
+  @Test
+  public void testNotLastPR() throws Exception {
+    IndirectLanguageAnalyserPR pr = newAnalyser();
+    WordAnalyser after = (WordAnalyser)
+            Factory.createResource(WordAnalyser.class.getName());
+    SerialAnalyserController controller = newController();
+    Corpus corpus = newCorpus(2);
+    try {
+      controller.add(pr);
+      controller.add(after);
+      pr.setPipelined(true);
+      try {
+        run(controller, corpus);
+        fail("a later PR would not see the mapped annotations");
+      } catch (ExecutionException ex) {
+        // expected
+      }
+    } finally {
+      deleteCorpus(corpus);
+      Factory.deleteResource(controller);
+      Factory.deleteResource(after);
+      Factory.deleteResource(pr.getLanguageAnalyser());
+      Factory.deleteResource(pr);
+    }
+  }
+
+  @Test
+  public void testThreadsNeedSegmentsOrPipelined() throws Exception {
+    IndirectLanguageAnalyserPR pr = newAnalyser();
+    SerialAnalyserController controller = newController();
+    Corpus corpus = newCorpus(2);
+    try {
+      controller.add(pr);
+      pr.setNumberOfThreads(4);
+      try {
+        run(controller, corpus);
+        fail("numberOfThreads would have no effect");
+      } catch (ExecutionException ex) {
+        // expected
+      }
+    } finally {
+      deleteCorpus(corpus);
+      Factory.deleteResource(controller);
+      Factory.deleteResource(pr.getLanguageAnalyser());
+      Factory.deleteResource(pr);
+    }
+  }
+}
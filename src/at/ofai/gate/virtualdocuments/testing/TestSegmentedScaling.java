@@ -0,0 +1,130 @@
+/*
+ *  TestSegmentedScaling.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.IndirectLanguageAnalyserPR;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ExecutionException;
+import gate.creole.metadata.CreoleResource;
+import java.util.Arrays;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Checks that the segmented mode of the {@link IndirectLanguageAnalyserPR}
+ * takes time linear in the number of segments: processing a document with
+ * eight times as many sentences must not take much more than eight times
+ * as long, as it would if every segment looked at all annotations of the
+ * document.
+ *
+ * @author Johann Petrak
+ */
+public class TestSegmentedScaling {
+
+  private static final int WORDS_PER_SENTENCE = 20;
+
+  /**
+   * An analyser that adds a single annotation to the virtual document.
+   */
+  @CreoleResource(name = "TestSegmentedScaling analyser")
+  public static class SegmentAnalyser extends AbstractLanguageAnalyser {
+    private static final long serialVersionUID = 1L;
+    @Override
+    public void execute() throws ExecutionException {
+      Utils.addAnn(document.getAnnotations("Out"), 0, 1, "Seen",
+              Factory.newFeatureMap());
+    }
+  }
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    if(!Gate.isInitialised()) {
+      Gate.init();
+    }
+    Gate.getCreoleRegister().registerComponent(SegmentAnalyser.class);
+    Gate.getCreoleRegister().registerComponent(IndirectLanguageAnalyserPR.class);
+  }
+
+  private static Document newDocument(int nrSentences) throws Exception {
+    StringBuilder text = new StringBuilder();
+    for(int w = 0; w < nrSentences*WORDS_PER_SENTENCE; w++) {
+      text.append("word").append(w % 100).append(' ');
+    }
+    Document doc = Factory.newDocument(text.toString());
+    int start = 0;
+    for(int s = 0; s < nrSentences; s++) {
+      int sentenceStart = start;
+      for(int w = 0; w < WORDS_PER_SENTENCE; w++) {
+        int length = ("word" + ((s*WORDS_PER_SENTENCE+w) % 100)).length();
+        Utils.addAnn(doc.getAnnotations(), start, start+length, "Token",
+                Utils.featureMap("string", "w"));
+        start += length+1;
+      }
+      Utils.addAnn(doc.getAnnotations(), sentenceStart, start-1, "Sentence",
+              Factory.newFeatureMap());
+    }
+    return doc;
+  }
+
+  // the fastest of a few runs in milliseconds
+  private static long time(IndirectLanguageAnalyserPR pr, int nrSentences)
+          throws Exception {
+    long best = Long.MAX_VALUE;
+    for(int run = 0; run < 3; run++) {
+      Document doc = newDocument(nrSentences);
+      try {
+        long start = System.nanoTime();
+        pr.controllerExecutionStarted(null);
+        pr.setDocument(doc);
+        pr.execute();
+        pr.controllerExecutionFinished(null);
+        best = Math.min(best, System.nanoTime()-start);
+        assertEquals(nrSentences, doc.getAnnotations("Out").size());
+      } finally {
+        Factory.deleteResource(doc);
+      }
+    }
+    return best/1000000;
+  }
+
+  @Test
+  public void testLinearInSegments() throws Exception {
+    IndirectLanguageAnalyserPR pr = (IndirectLanguageAnalyserPR)
+            Factory.createResource(IndirectLanguageAnalyserPR.class.getName());
+    SegmentAnalyser analyser = (SegmentAnalyser)
+            Factory.createResource(SegmentAnalyser.class.getName());
+    try {
+      pr.setLanguageAnalyser(analyser);
+      pr.setAnnotationSpecifications(Arrays.asList("Token.string"));
+      FeatureMap options = Factory.newFeatureMap();
+      options.put("separator", " ");
+      pr.setProcessingOptions(options);
+      pr.setMapBackAnnotations(Arrays.asList("Out"));
+      pr.setMapForwardAnnotations(Arrays.asList(".Token"));
+      pr.setSegmentAnnotationType("Sentence");
+      // warm up
+      time(pr, 500);
+      long small = Math.max(time(pr, 500), 1);
+      long large = time(pr, 4000);
+      // linear: about 8 times as long, quadratic: about 64 times
+      assertTrue("500 segments: "+small+"ms, 4000 segments: "+large+"ms",
+              large < 24*small + 200);
+    } finally {
+      Factory.deleteResource(pr);
+      Factory.deleteResource(analyser);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ *  TestStoredOffsetMapping.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.AnnotatedDocumentTransformer;
+import at.ofai.gate.virtualdocuments.OffsetMapping;
+import at.ofai.gate.virtualdocuments.StoredOffsetMapping;
+import at.ofai.gate.virtualdocuments.TransformResult;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import javax.naming.InvalidNameException;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Tests for stored offset mappings: a mapping restored from its string
+ * form, from a stream or from a document feature must map every offset
+ * like the mapping that was stored.
+ *
+ * @author Johann Petrak
+ */
+public class TestStoredOffsetMapping {
+
+  private static Document document;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    if(!Gate.isInitialised()) {
+      Gate.init();
+    }
+    // random words with some of them annotated as tokens, so the virtual
+    // document leaves out text and the string features differ in length
+    Random random = new Random(1);
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 500; i++) {
+      int length = 1+random.nextInt(8);
+      for(int k = 0; k < length; k++) {
+        text.append((char)('a'+random.nextInt(26)));
+      }
+      text.append(' ');
+    }
+    document = Factory.newDocument(text.toString());
+    document.setName("original");
+    int start = 0;
+    for(String word : text.toString().split(" ")) {
+      if(random.nextInt(4) > 0) {
+        String string = random.nextBoolean() ? word : word.toUpperCase()+"_";
+        document.getAnnotations().add((long)start, (long)start+word.length(),
+                "Token", Utils.featureMap("string", string));
+      }
+      start += word.length()+1;
+    }
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() {
+    Factory.deleteResource(document);
+  }
+
+  private static TransformResult transform(boolean compressed)
+          throws InvalidNameException {
+    FeatureMap options = Factory.newFeatureMap();
+    options.put("separator", " ");
+    AnnotatedDocumentTransformer adt = new AnnotatedDocumentTransformer(
+            Arrays.asList("Token.string"), options, true, true);
+    adt.setCompressOffsetMaps(compressed);
+    return adt.transform(document, "");
+  }
+
+  private static void assertSameMapping(OffsetMapping expected,
+          OffsetMapping actual) {
+    assertEquals("size", expected.size(), actual.size());
+    for(int i = 0; i < expected.size(); i++) {
+      assertEquals("from of "+i, expected.getFrom(i), actual.getFrom(i));
+      assertEquals("to of "+i, expected.getTo(i), actual.getTo(i));
+    }
+  }
+
+  @Test
+  public void testStringRoundTrip() throws InvalidNameException {
+    for(boolean compressed : new boolean[] { false, true }) {
+      TransformResult result = transform(compressed);
+      for(OffsetMapping mapping : new OffsetMapping[] {
+              result.getBackwardOffsetMap(), result.getForwardOffsetMap() }) {
+        String string = new StoredOffsetMapping(mapping, "original").toString();
+        StoredOffsetMapping restored = new StoredOffsetMapping(string);
+        assertEquals("original", restored.getDocumentName());
+        OffsetMapping read = restored.getMapping();
+        assertEquals(mapping.getClass(), read.getClass());
+        assertTrue(read.isCompressed());
+        assertTrue(read.isFrozen());
+        assertSameMapping(mapping, read);
+        assertSame(read, restored.getMapping());
+      }
+    }
+  }
+
+  @Test
+  public void testStreamRoundTrip() throws Exception {
+    OffsetMapping mapping = transform(true).getBackwardOffsetMap();
+    for(String name : new String[] { "original", null }) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new StoredOffsetMapping(mapping, name).write(bytes);
+      StoredOffsetMapping read = StoredOffsetMapping.read(
+              new ByteArrayInputStream(bytes.toByteArray()));
+      assertEquals(name, read.getDocumentName());
+      assertSameMapping(mapping, read.getMapping());
+    }
+  }
+
+  @Test
+  public void testSerializable() throws Exception {
+    OffsetMapping mapping = transform(false).getBackwardOffsetMap();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(new StoredOffsetMapping(mapping, "original"));
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+    StoredOffsetMapping read = (StoredOffsetMapping)in.readObject();
+    assertEquals("original", read.getDocumentName());
+    assertSameMapping(mapping, read.getMapping());
+  }
+
+  @Test
+  public void testGetFromFeature() throws Exception {
+    OffsetMapping mapping = transform(true).getBackwardOffsetMap();
+    StoredOffsetMapping stored = new StoredOffsetMapping(mapping, "original");
+    Document virtualDoc = Factory.newDocument("virtual");
+    try {
+      assertNull(StoredOffsetMapping.getFromFeature(virtualDoc));
+      virtualDoc.getFeatures().put(StoredOffsetMapping.FEATURE_NAME, stored);
+      assertSame(stored, StoredOffsetMapping.getFromFeature(virtualDoc));
+      virtualDoc.getFeatures().put(StoredOffsetMapping.FEATURE_NAME,
+              stored.toString());
+      StoredOffsetMapping read = StoredOffsetMapping.getFromFeature(virtualDoc);
+      assertEquals("original", read.getDocumentName());
+      assertSameMapping(mapping, read.getMapping());
+      virtualDoc.getFeatures().put(StoredOffsetMapping.FEATURE_NAME, 42);
+      try {
+        StoredOffsetMapping.getFromFeature(virtualDoc);
+        fail("a feature that is not a stored mapping must be rejected");
+      } catch (IllegalArgumentException ex) {
+        // expected
+      }
+    } finally {
+      Factory.deleteResource(virtualDoc);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNotAStoredMapping() {
+    new StoredOffsetMapping("bm90IGEgbWFwcGluZw==");
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ *  TestVirtualDocumentFile.java
+ *
+ *  This file is is free software, licenced under the
+ *  GNU Library General Public License, Version 2, June 1991.
+ *  See http://www.gnu.org/licenses/gpl-2.0.html
+ *
+ *  $Id: $
+ */
+
+package at.ofai.gate.virtualdocuments.testing;
+
+import at.ofai.gate.virtualdocuments.AnnotatedDocumentTransformer;
+import at.ofai.gate.virtualdocuments.OffsetMapping;
+import at.ofai.gate.virtualdocuments.TransformResult;
+import at.ofai.gate.virtualdocuments.VirtualDocumentFile;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Utils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+/**
+ * Tests for the binary virtual document format: a virtual document read
+ * back must have the same text, features, annotations and offset maps as
+ * the one that was written.
+ *
+ * @author Johann Petrak
+ */
+public class TestVirtualDocumentFile {
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    if(!Gate.isInitialised()) {
+      Gate.init();
+    }
+  }
+
+  // a document that contains its text as it is, even if it looks like markup
+  private static Document newDocument(String text) throws Exception {
+    FeatureMap params = Factory.newFeatureMap();
+    params.put("stringContent", text);
+    params.put("markupAware", Boolean.FALSE);
+    return (Document) Factory.createResource(
+            "gate.corpora.DocumentImpl", params);
+  }
+
+  private static VirtualDocumentFile roundTrip(Document virtualDoc,
+          String originalName, TransformResult result) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    VirtualDocumentFile.write(virtualDoc, originalName, result, bytes);
+    return VirtualDocumentFile.read(
+            new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  private static void assertSameAnnotations(AnnotationSet expected,
+          AnnotationSet actual) {
+    assertEquals("number of annotations in "+expected.getName(),
+            expected.size(), actual.size());
+    for(Annotation ann : expected) {
+      Annotation read = actual.get(ann.getId());
+      assertNotNull("annotation "+ann.getId(), read);
+      assertEquals(ann.getType(), read.getType());
+      assertEquals(ann.getStartNode().getOffset(), read.getStartNode().getOffset());
+      assertEquals(ann.getEndNode().getOffset(), read.getEndNode().getOffset());
+      assertEquals(ann.getFeatures(), read.getFeatures());
+    }
+  }
+
+  private static void assertSameMapping(OffsetMapping expected,
+          OffsetMapping actual) {
+    assertEquals("size", expected.size(), actual.size());
+    for(int i = 0; i < expected.size(); i++) {
+      assertEquals("from of "+i, expected.getFrom(i), actual.getFrom(i));
+      assertEquals("to of "+i, expected.getTo(i), actual.getTo(i));
+    }
+  }
+
+  @Test
+  public void testRoundTripWithMarkupInText() throws Exception {
+    // the virtual document text looks like XML, it must not be parsed
+    // when the virtual document is read
+    Document original = newDocument("Hello world text");
+    original.setName("original");
+    original.getFeatures().put("number", 42);
+    AnnotationSet anns = original.getAnnotations();
+    anns.add(0L, 5L, "Token",
+            Utils.featureMap("string", "<?xml version=\"1.0\"?><a>Hello"));
+    anns.add(6L, 11L, "Token", Utils.featureMap("string", "world"));
+    anns.add(12L, 16L, "Token", Utils.featureMap("string", "text</a>"));
+    original.getAnnotations("other").add(0L, 11L, "Chunk",
+            Utils.featureMap("kinds", Arrays.asList("a", "b")));
+
+    FeatureMap options = Factory.newFeatureMap();
+    options.put("separator", " ");
+    AnnotatedDocumentTransformer adt = new AnnotatedDocumentTransformer(
+            Arrays.asList("Token.string"), options, true, true);
+    adt.setCompressOffsetMaps(true);
+    TransformResult result = adt.transform(original, "");
+    String text = "<?xml version=\"1.0\"?><a>Hello world text</a>";
+    assertEquals(text, result.getText());
+
+    Document virtualDoc = newDocument(result.getText());
+    virtualDoc.setName("original_virtual");
+    virtualDoc.getFeatures().clear();
+    virtualDoc.getFeatures().putAll(original.getFeatures());
+    List<String> sets = new ArrayList<String>();
+    sets.add("");
+    sets.add("other");
+    adt.addForwardMappedAnnotations(result, original, virtualDoc, sets);
+
+    VirtualDocumentFile file = roundTrip(virtualDoc, "original", result);
+    Document read = file.getDocument();
+    try {
+      assertEquals("original_virtual", read.getName());
+      assertEquals("original", file.getOriginalDocumentName());
+      assertEquals(text, read.getContent().toString());
+      assertEquals(virtualDoc.getFeatures(), read.getFeatures());
+      assertEquals(virtualDoc.getNamedAnnotationSets().keySet(),
+              read.getNamedAnnotationSets().keySet());
+      assertSameAnnotations(virtualDoc.getAnnotations(), read.getAnnotations());
+      assertSameAnnotations(virtualDoc.getAnnotations("other"),
+              read.getAnnotations("other"));
+      // new annotations must not reuse the ids of the annotations read
+      Integer id = read.getAnnotations().add(0L, 1L, "New",
+              Factory.newFeatureMap());
+      assertNull(read.getAnnotations("other").get(id));
+      assertEquals("New", read.getAnnotations().get(id).getType());
+
+      TransformResult readResult = file.getTransformResult();
+      assertEquals(text, readResult.getText());
+      assertEquals(result.getFromOffset(), readResult.getFromOffset());
+      assertEquals(result.getToOffset(), readResult.getToOffset());
+      assertSameMapping(result.getForwardOffsetMap(),
+              readResult.getForwardOffsetMap());
+      assertSameMapping(result.getBackwardOffsetMap(),
+              readResult.getBackwardOffsetMap());
+    } finally {
+      Factory.deleteResource(read);
+      Factory.deleteResource(virtualDoc);
+      Factory.deleteResource(original);
+    }
+  }
+
+  @Test
+  public void testRoundTripWithoutMaps() throws Exception {
+    Document virtualDoc = newDocument("a copy");
+    virtualDoc.getAnnotations().add(2L, 6L, "Word", Factory.newFeatureMap());
+    VirtualDocumentFile file = roundTrip(virtualDoc, null, null);
+    Document read = file.getDocument();
+    try {
+      assertNull(file.getOriginalDocumentName());
+      assertEquals("a copy", read.getContent().toString());
+      assertSameAnnotations(virtualDoc.getAnnotations(), read.getAnnotations());
+      assertNull(file.getTransformResult().getForwardOffsetMap());
+      assertNull(file.getTransformResult().getBackwardOffsetMap());
+    } finally {
+      Factory.deleteResource(read);
+      Factory.deleteResource(virtualDoc);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotAVirtualDocumentFile() throws Exception {
+    VirtualDocumentFile.read(new ByteArrayInputStream(
+            "<?xml version=\"1.0\"?><a/>".getBytes("UTF-8")));
+  }
+}